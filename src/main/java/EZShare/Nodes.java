@@ -1,5 +1,8 @@
 package EZShare;
 
+import EZShare.client.ChunkedDownloader;
+import EZShare.client.Downloader;
+import EZShare.client.SubscribeClient;
 import EZShare.encryptMessage.EncryptMessage;
 import EZShare.log.LogCustomFormatter;
 import EZShare.message.*;
@@ -10,11 +13,11 @@ import org.apache.commons.cli.*;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.net.ServerSocketFactory;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -33,12 +36,20 @@ public class Nodes {
     public static int PORT = 3785;
     public static final int MAX_THREAD_COUNT = 50;
     public static long INTERVAL = 1000;
-    public static long EXCHANGE_PERIOD = 600000;
+    public static int CONNECTION_BURST = 1;//connections allowed back to back before INTERVAL applies
+    public static long EXCHANGE_PERIOD = 60000;//servers gossip their server list this often
     public static boolean isUltraNode = false;
     public static final int TIME_OUT = 30000;//each connection time out
+    public static final int KEEP_ALIVE_TIMEOUT = 15000;//idle time before a kept-alive connection is closed
+    public static final int MAX_IDLE_KEEP_ALIVE = MAX_THREAD_COUNT / 5;//workers that may wait on idle kept-alive connections
     public static final String download_path = "Downloads/lf1/";
     public static final int MAX_NODES_TO_EXPAND = 4;//maximum nodes for one hop to visit
     public static final int MAX_HOPS = 7;
+    public static final long QUERY_HOP_DEADLINE = 500;//relayed query waits this long per remaining hop
+    public static final long QUERY_CACHE_TTL = 30000;//ultra nodes answer a repeated query from cache this long
+    public static final int QUERY_CACHE_RESULTS = 10000;//results cached over all queries
+    public static final long FETCH_CACHE_TTL = 300000;//relayed file content is served from cache this long
+    public static final int REPLAY_BUFFER = 10000;//latest notified resources kept for resuming subscribers
     /* Data structures and utilities */
     private static final FileList fileList = new FileList();
     private static final ServerList serverList = new ServerList();
@@ -46,16 +57,26 @@ public class Nodes {
     private static final Gson gson = new Gson();
     private static final KeyList keyList = new KeyList();
     /*
-     A HashMap to record the mapping from a specified client to the starting time of its last connection
+     Token buckets per client and command class, idle clients expire automatically.
+     Only created when running as a server.
  */
-    private static ConcurrentHashMap<String, Long> intervalLimit = new ConcurrentHashMap<>();
+    public static RateLimiter rateLimiter;
+    /* Content fetched through this node, deduplicated by chunk hash */
+    private static ChunkStore chunkStore;
+    public static long CACHE_SIZE = 256L * 1024 * 1024;
+    /* Notifications queued per subscriber, and what to do with a subscriber that falls further behind */
+    public static int SUBSCRIBER_QUEUE = 1000;
+    public static SubscriberQueue.Policy SLOW_SUBSCRIBER_POLICY = SubscriberQueue.Policy.DROP_OLDEST;
+    private static final Map<String, RateLimiter.Rate> rateLimits = new HashMap<>();
     /*
     Currently it is a simple fixed-volume thread pool.
     If no thread resource is available at the moment, it would be blocked until it could get one.
 */
     private static ExecutorService threadPool = Executors.newFixedThreadPool(MAX_THREAD_COUNT);
-    public static ConcurrentHashMap<Host, Socket> unsecure_relay = new ConcurrentHashMap<>();
+    public static ConcurrentHashMap<Host, RelayChannel> unsecure_relay = new ConcurrentHashMap<>();
     public static ConcurrentHashMap<Socket, Subscription> subscriptions = new ConcurrentHashMap<>();
+    /* The subscriptions above, indexed for matching new resources */
+    public static final SubscriptionIndex subscriptionIndex = new SubscriptionIndex();
 
     private static Options commandOptions() {
         //Build up command line options
@@ -64,7 +85,12 @@ public class Nodes {
         //server command
         options.addOption("advertisedhostname", true, "advertised hostname");
         options.addOption("connectionintervallimit", true, "connection interval limit in seconds");
-//        options.addOption("exchangeinterval", true, "exchange interval in seconds");
+        options.addOption("connectionburst", true, "connections allowed in a burst before the interval limit applies");
+        options.addOption("ratelimits", true, "per command rate limits, COMMAND=perSecond:burst,...");
+        options.addOption("cachesize", true, "size of the fetch cache in megabytes");
+        options.addOption("subscriberqueue", true, "notifications queued per subscriber");
+        options.addOption("slowsubscriber", true, "when a subscriber queue is full: drop_oldest, coalesce or disconnect");
+        options.addOption("exchangeinterval", true, "exchange interval in seconds");
         options.addOption("selfport", true, "server port, an integer");
         options.addOption("debug", false, "print debug information");
 //        options.addOption("sport", true, "server secure port, an integer");
@@ -72,7 +98,10 @@ public class Nodes {
         //client command
         options.addOption("id", true, "set the ID for subscribe request");
         options.addOption("subscribe", false, "subscribe resource from server");
+        options.addOption("batch", false, "receive subscribed resources in batches");
+        options.addOption("resume", true, "resume a subscription after epoch:seq as printed when subscribing, -1 to number resources from now");
         options.addOption("fetch", false, "fetch resource from server");
+        options.addOption("multisource", false, "fetch in chunks from every server holding the resource");
         options.addOption("channel", true, "channel");
         options.addOption("description", true, "resource description");
         options.addOption("exchange", false, "exchange server list with server");
@@ -93,20 +122,6 @@ public class Nodes {
         //parse command line arguments
         return options;
     }
-    private synchronized static void forward(Socket socket){
-        try{
-            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-            socket.setSoTimeout(1);
-            String resource = inputStream.readUTF();
-
-            if (!resource.contains("resultSize")&&!resource.contains("error")&&!resource.contains("success")){
-                ResourceTemplate resourceTemplate = gson.fromJson(resource,ResourceTemplate.class);
-                fileList.sendNotification(resourceTemplate);
-            }
-        }catch (IOException e){
-
-        }
-    }
     /**
      * Validator of Command Line options. Prevent user typing multiple commands.
      *
@@ -210,6 +225,7 @@ public class Nodes {
         logger.fine("querying to :" + socket.getRemoteSocketAddress());
 
         QueryMessage queryMessage = new QueryMessage(resourceTemplate, true, MAX_HOPS);
+        queryMessage.setQueryId(UUID.randomUUID().toString());
         String JSON = gson.toJson(queryMessage);
 
 //        String encryptedJson = gson.toJson(encryption(socket,JSON));
@@ -400,7 +416,8 @@ public class Nodes {
      * @param resourceTemplate The encapsulation of the resource.
      */
     private static void fetchCommand(Socket socket, ResourceTemplate resourceTemplate) throws IOException {
-
+        //also bounds each read of the file content, a stalled server ends the fetch
+        socket.setSoTimeout(TIME_OUT);
         DataInputStream input = new DataInputStream(socket.getInputStream());
         DataOutputStream output = new DataOutputStream(socket.getOutputStream());
 
@@ -425,55 +442,18 @@ public class Nodes {
                 logger.fine("RECEIVE:" + file_template);
                 FileTemplate receivedFileTemplate = gson.fromJson(file_template, FileTemplate.class);
 
-                int resource_size = (int) receivedFileTemplate.getResourceSize();
+                long resource_size = receivedFileTemplate.getResourceSize();
 
                 String name = new File(receivedFileTemplate.getUri()).getName();
-//                System.out.println(name);
 
                 //check download directory
                 File download_directory = new File(download_path);
                 if (!download_directory.exists()) {
-                    download_directory.mkdir();
+                    download_directory.mkdirs();
                 }
                 System.out.println("downloadpath"+download_path);
-                //create file
-                RandomAccessFile randomAccessFile = new RandomAccessFile(download_path + name, "rw");
-
-                //set read buffer size
-                int buffer_size = 1024;
-
-                buffer_size = resource_size > buffer_size ? buffer_size : resource_size;
-
-                byte[] buffer = new byte[buffer_size];
-
-                // # of bytes to be received
-                int to_receive = resource_size;
-
-                // # of bytes received per time
-                int received;
-
-                //read byte from socket until the last chunk
-                while (to_receive > buffer_size && (received = input.read(buffer)) != -1) {
-                    //write file
-                    randomAccessFile.write(Arrays.copyOf(buffer, received));
-                    //note down how many bytes received
-                    to_receive -= received;
-
-                    //System.out.println(to_receive);
-                    //if there is only one chunk to receive, break to prevent the lost of result_size information
-
-                }
-
-                if (to_receive > 0) {
-                    //set the buffer to the length of the last chunk
-                    buffer = new byte[to_receive];
-
-                    //read last chunk and write to file
-                    received = input.read(buffer);
-                    randomAccessFile.write(Arrays.copyOf(buffer, received));
-                }
-                //close file
-                randomAccessFile.close();
+                //receive file content
+                Downloader.download(input, new File(download_path + name), resource_size);
 
                 //read resourceSize
                 response = input.readUTF();
@@ -484,64 +464,53 @@ public class Nodes {
             logger.warning("RECEIVED:" + response);
         }
     }
+    /**
+     * Process fetch command with chunks downloaded in parallel from all holders.
+     *
+     * @param socket           The socket connected to target server, used to find holders.
+     * @param resourceTemplate The encapsulation of the resource.
+     */
+    private static void multiSourceFetchCommand(Socket socket, ResourceTemplate resourceTemplate) throws IOException {
+
+        logger.fine("looking for holders via : " + socket.getRemoteSocketAddress());
+
+        List<Host> holders = ChunkedDownloader.discoverHolders(socket, resourceTemplate, MAX_HOPS);
+        if (holders.isEmpty()) {
+            logger.warning("no server holds " + resourceTemplate.getUri());
+            return;
+        }
+
+        //check download directory
+        File download_directory = new File(download_path);
+        if (!download_directory.exists()) {
+            download_directory.mkdirs();
+        }
+        String name = new File(resourceTemplate.getUri()).getName();
+        long size = new ChunkedDownloader(resourceTemplate, holders).download(new File(download_path + name));
+        logger.fine("RECEIVED_ALL:" + size + " bytes from " + holders.size() + " servers");
+    }
+
     /**
      * Process subscribe command.
      *
      * @param socket           The socket connected to target server.
      * @param resourceTemplate The query condition of subscribed resources.
      * @param relay            Whether the subscribe command will be relayed to other servers.
+     * @param batch            Whether to ask for resources in batches.
+     * @param resumeFrom       Sequence number of the last resource seen, null for a plain subscription.
+     * @param epoch            Epoch of the server resumeFrom comes from, null if not known.
      * @param id               The id of the subscription.
      * @throws IOException Exception in data stream.
      */
-    private static void subscribeCommand(Socket socket, ResourceTemplate resourceTemplate, boolean relay, String id) throws IOException {
-
-        DataInputStream input = new DataInputStream(socket.getInputStream());
-        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
-
-        logger.fine("subscribing to :" + socket.getRemoteSocketAddress());
+    private static void subscribeCommand(Socket socket, ResourceTemplate resourceTemplate, boolean relay, String id, boolean batch, Long resumeFrom, Long epoch) throws IOException {
 
         //construct subscribe message.
         SubscribeMessage subscribeMessage = new SubscribeMessage(relay, id, resourceTemplate,MAX_HOPS);
-        String JSON = gson.toJson(subscribeMessage);
-        sendMessage(output, JSON);
-        String response = input.readUTF();
-        //if successfully subscribed
-        if (response.contains("success")) {
-            logger.fine("RECEIVED:" + response);
-
-            //hold connection until press enter.
-            socket.setSoTimeout(1);
-            while (System.in.available() == 0) {
-
-                //check available resource and print out.
-                try {
-                    String resource = input.readUTF();
-                    System.out.println(resource);
-                } catch (IOException e) {
-                    //just to prevent blocking in SSLSocket.
-                }
-
-            }
-
-            socket.setSoTimeout(3000);
-            //Termination
-            //construct unsubscribe message.
-            UnsubscribeMessage unsubscribeMessage = new UnsubscribeMessage(id);
-
-            JSON = gson.toJson(unsubscribeMessage);
-            sendMessage(output, JSON);
-
-            //read result size
-            response = input.readUTF();
-
-            logger.info("RECEIVED:" + response);
-
-
-        } else if (response.contains("error")) {
-            logger.warning("RECEIVED:" + response);
-        }
-
-
+        subscribeMessage.setBatch(batch);
+        subscribeMessage.setResumeFrom(resumeFrom);
+        subscribeMessage.setEpoch(epoch);
+        //hold connection until press enter.
+        new SubscribeClient(socket, subscribeMessage, System.out).run(System.in);
     }
 
     private static void commandParse(CommandLine cmdLine) {
@@ -553,6 +522,33 @@ public class Nodes {
             if (cmdLine.hasOption("connectionintervallimit")) {
                 INTERVAL = Integer.parseInt(cmdLine.getOptionValue("connectionintervallimit"));
             }
+            if (cmdLine.hasOption("connectionburst")) {
+                CONNECTION_BURST = Integer.parseInt(cmdLine.getOptionValue("connectionburst"));
+            }
+            if (cmdLine.hasOption("ratelimits")) {
+                try {
+                    RateLimiter.parseRates(cmdLine.getOptionValue("ratelimits"), rateLimits);
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Invalid -ratelimits: " + e.getMessage());
+                }
+            }
+            if (cmdLine.hasOption("cachesize")) {
+                CACHE_SIZE = Long.parseLong(cmdLine.getOptionValue("cachesize")) * 1024 * 1024;
+            }
+            if (cmdLine.hasOption("subscriberqueue")) {
+                SUBSCRIBER_QUEUE = Integer.parseInt(cmdLine.getOptionValue("subscriberqueue"));
+            }
+            if (cmdLine.hasOption("slowsubscriber")) {
+                try {
+                    SLOW_SUBSCRIBER_POLICY = SubscriberQueue.Policy.valueOf(cmdLine.getOptionValue("slowsubscriber").toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Invalid -slowsubscriber: " + cmdLine.getOptionValue("slowsubscriber")
+                            + ", expected one of " + Arrays.toString(SubscriberQueue.Policy.values()));
+                }
+            }
+            if (cmdLine.hasOption("exchangeinterval")) {
+                EXCHANGE_PERIOD = Long.parseLong(cmdLine.getOptionValue("exchangeinterval")) * 1000;
+            }
             if (cmdLine.hasOption("selfport")) {
                 PORT = Integer.parseInt(cmdLine.getOptionValue("selfport"));
             }
@@ -572,9 +568,22 @@ public class Nodes {
 //            System.err.println("command line parsed end");
                 logger.info("Using advertised hostname: " + HOST);
                 logger.info(String.valueOf("Using connection interval limit: " + INTERVAL));
+                if (INTERVAL > 0) {
+                    rateLimits.put(RateLimiter.CONNECTION, new RateLimiter.Rate(1000.0 / INTERVAL, CONNECTION_BURST));
+                }
+                rateLimiter = new RateLimiter(rateLimits);
+                chunkStore = new ChunkStore(CACHE_SIZE, FETCH_CACHE_TTL);
+                /* Peers learn what this node holds from its summary, sent again whenever it changes */
+                serverList.setLocalSummary(fileList.getSummary());
+                fileList.setSummaryListener(serverList::localSummaryChanged);
+                /* Resources notified by peers over subscribe relays go to local subscribers */
+                serverList.setRelayListener(fileList::notifySubscribers);
+                serverList.startGossip();
                 /* Create ServerSocket */
-                ServerSocketFactory factory = ServerSocketFactory.getDefault();
-                ServerSocket serverSocket = factory.createServerSocket(PORT);
+                /* Accepted sockets keep their channel so that files can be sent with transferTo */
+                ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+                ServerSocket serverSocket = serverSocketChannel.socket();
+                serverSocket.bind(new InetSocketAddress(PORT));
                 logger.info("Bound to port " + PORT);
                 logger.info("ServerSocket initialized.");
                 logger.info("Waiting for client connection..");
@@ -587,14 +596,14 @@ public class Nodes {
                             /* Upper bound of simultaneous connections */
                             //set up connection within time period
                             String clientIP = client.getInetAddress().getHostAddress();
-                            long currentTime = System.currentTimeMillis();
-                            if (!intervalLimit.containsKey(clientIP) || (currentTime - intervalLimit.get(clientIP) > INTERVAL)) {
-                                /* Update the time record */
-                                intervalLimit.put(clientIP, currentTime);
+                            //known servers have their own budget, their connections come in bursts
+                            String connectionClass = serverList.isServerAddress(client.getInetAddress())
+                                    ? RateLimiter.PEER_CONNECTION : RateLimiter.CONNECTION;
+                            if (rateLimiter.tryAcquire(clientIP, connectionClass)) {
                                 /* Assign a worker thread for this socket. */
 //                                System.out.println("begin test for threadpool");
                                 try {
-                                    Nodes.threadPool.submit(new WorkerThread(client, fileList, serverList, isUltraNode,MAX_HOPS,keyList));
+                                    Nodes.threadPool.submit(new WorkerThread(client, fileList, serverList, isUltraNode,MAX_HOPS,keyList,chunkStore));
                                 }catch (Exception e) {
                                     e.printStackTrace();
                                     logger.log(Level.WARNING, "{0} cannot create stream", client.getRemoteSocketAddress().toString());
@@ -610,15 +619,7 @@ public class Nodes {
                         }
                     }
                 });
-                Thread listener = new Thread(() -> {
-                    while (true){
-                        for (Map.Entry<Host,Socket> entry: Nodes.unsecure_relay.entrySet()) {
-                            forward(entry.getValue());
-                        }
-                    }
-                });
                 plainSocket.start();
-                listener.start();
             }
             if (!optionsValidator(cmdLine)) {
                 //check command for original client
@@ -704,6 +705,8 @@ public class Nodes {
             if (cmdLine.hasOption("fetch")) {
                 if (!cmdLine.hasOption("uri")) {
                     error_message = "URI is missing.";
+                } else if (cmdLine.hasOption("multisource")) {
+                    multiSourceFetchCommand(socket, resourceTemplate);
                 } else {
                     fetchCommand(socket, resourceTemplate);
                 }
@@ -714,7 +717,20 @@ public class Nodes {
                 boolean relay = true;
                 //set local IP address as default ID.
                 String id = cmdLine.getOptionValue("id", socket.getLocalAddress().toString());
-                subscribeCommand(socket, resourceTemplate, relay, id);
+                //epoch:seq, or a bare sequence number, e.g. -1 for from now
+                String resume = cmdLine.getOptionValue("resume");
+                Long resumeFrom = null;
+                Long epoch = null;
+                if (resume != null) {
+                    int colon = resume.indexOf(':');
+                    try {
+                        epoch = colon > 0 ? Long.valueOf(resume.substring(0, colon)) : null;
+                        resumeFrom = Long.valueOf(resume.substring(colon + 1));
+                    } catch (NumberFormatException e) {
+                        throw new ParseException("Invalid -resume: " + resume + ", expected epoch:seq");
+                    }
+                }
+                subscribeCommand(socket, resourceTemplate, relay, id, cmdLine.hasOption("batch"), resumeFrom, epoch);
             }
 
             if (error_message != null) {
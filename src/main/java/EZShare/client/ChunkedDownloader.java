@@ -0,0 +1,260 @@
+package EZShare.client;
+
+import EZShare.Nodes;
+import EZShare.message.FetchMessage;
+import EZShare.message.FileTemplate;
+import EZShare.message.Host;
+import EZShare.message.QueryMessage;
+import EZShare.message.ResourceTemplate;
+import EZShare.util.PeerConnectionPool;
+import com.google.gson.Gson;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Downloads one resource from several holders at once.
+ * The file is cut into fixed-size chunks; workers (a few per holder) take chunks from a
+ * shared queue, fetch them with a ranged FETCH and write them straight into the target file
+ * at the chunk's offset. A chunk whose holder fails goes back on the queue for the others.
+ */
+public class ChunkedDownloader {
+
+    public static final long CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int WORKERS_PER_SOURCE = 2;
+    private static final int MAX_FAILURES = 3;//consecutive failures before a worker gives up on its holder
+    private static final long RETRY_BACKOFF = 500;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 30000;
+
+    /**
+     * The holder does not have the requested version of the resource, asking again will not help.
+     */
+    private static class HolderMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private HolderMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    private final ResourceTemplate resource;
+    private final List<Host> sources;
+    private final Gson gson = new Gson();
+    private final PeerConnectionPool connectionPool = new PeerConnectionPool(WORKERS_PER_SOURCE, Nodes.KEEP_ALIVE_TIMEOUT * 2 / 3);
+
+    /**
+     * @param resource channel and uri of the resource.
+     * @param sources  holders of the resource.
+     */
+    public ChunkedDownloader(ResourceTemplate resource, List<Host> sources) {
+        this.resource = resource;
+        this.sources = sources;
+    }
+
+    /**
+     * Find servers holding a resource by querying for its channel and uri.
+     *
+     * @param socket           the socket connected to the server to ask.
+     * @param resourceTemplate channel and uri of the resource.
+     * @param mxHops           hops the query may be relayed.
+     * @return distinct holders taken from the ezserver field of the results.
+     * @throws IOException Exception in socket stream.
+     */
+    public static List<Host> discoverHolders(Socket socket, ResourceTemplate resourceTemplate, int mxHops) throws IOException {
+        Gson gson = new Gson();
+        socket.setSoTimeout(Nodes.TIME_OUT);
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+
+        QueryMessage queryMessage = new QueryMessage(resourceTemplate, true, mxHops);
+        queryMessage.setQueryId(UUID.randomUUID().toString());
+        output.writeUTF(gson.toJson(queryMessage));
+        output.flush();
+
+        Map<String, Host> holders = new LinkedHashMap<>();
+        String response = input.readUTF();
+        if (!response.contains("success")) {
+            Nodes.logger.warning("RECEIVED:" + response);
+            return new ArrayList<>();
+        }
+        response = input.readUTF();
+        while (!response.contains("resultSize")) {
+            ResourceTemplate r = gson.fromJson(response, ResourceTemplate.class);
+            String ezserver = r.getEzserver();
+            int colon = ezserver.lastIndexOf(':');
+            if (r.getUri().equals(resourceTemplate.getUri()) && r.getChannel().equals(resourceTemplate.getChannel())
+                    && colon > 0 && !holders.containsKey(ezserver)) {
+                holders.put(ezserver, new Host(ezserver.substring(0, colon), Integer.valueOf(ezserver.substring(colon + 1))));
+            }
+            response = input.readUTF();
+        }
+        Nodes.logger.fine("holders of " + resourceTemplate.getUri() + " : " + holders.keySet());
+        return new ArrayList<>(holders.values());
+    }
+
+    /**
+     * Download the resource into a file.
+     *
+     * @param target the file to write.
+     * @return size of the resource.
+     * @throws IOException when no holder can serve the first chunk, or all holders failed.
+     */
+    public long download(File target) throws IOException {
+        try {
+            return downloadInto(target);
+        } catch (IOException e) {
+            //do not leave a partial file behind
+            target.delete();
+            throw e;
+        }
+    }
+
+    private long downloadInto(File target) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            FileChannel channel = file.getChannel();
+
+            //the first chunk also tells the total size
+            long total = -1;
+            for (Host h : sources) {
+                try {
+                    total = fetchChunk(h, channel, 0, CHUNK_SIZE, -1).getResourceSize();
+                    break;
+                } catch (IOException e) {
+                    Nodes.logger.log(Level.WARNING, "{0} failed on first chunk: {1}", new Object[]{h, e.getMessage()});
+                }
+            }
+            if (total < 0) {
+                throw new IOException("no source could serve " + resource.getUri());
+            }
+            file.setLength(total);
+
+            LinkedBlockingDeque<Long> chunks = new LinkedBlockingDeque<>();
+            for (long offset = CHUNK_SIZE; offset < total; offset += CHUNK_SIZE) {
+                chunks.add(offset);
+            }
+            AtomicInteger remaining = new AtomicInteger(chunks.size());
+            if (remaining.get() > 0) {
+                ExecutorService workers = Executors.newFixedThreadPool(sources.size() * WORKERS_PER_SOURCE);
+                for (Host h : sources) {
+                    for (int i = 0; i < WORKERS_PER_SOURCE; i++) {
+                        final long size = total;
+                        workers.submit(() -> work(h, channel, chunks, remaining, size));
+                    }
+                }
+                workers.shutdown();
+                try {
+                    while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                        Nodes.logger.fine(remaining.get() + " chunks to go");
+                    }
+                } catch (InterruptedException e) {
+                    workers.shutdownNow();
+                    Thread.currentThread().interrupt();
+                    throw new IOException("download interrupted");
+                }
+            }
+            if (remaining.get() > 0) {
+                throw new IOException(remaining.get() + " chunks could not be fetched from any source");
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Worker loop for one holder. Stops when all chunks are done or the holder keeps failing,
+     * backing off between failures since the holder may just be rate limiting us. The backoff
+     * is jittered so that the workers of a holder do not retry in step. A holder that does not
+     * have the resource, or has another version of it, is given up on at once.
+     */
+    private void work(Host host, FileChannel channel, LinkedBlockingDeque<Long> chunks, AtomicInteger remaining, long total) {
+        int failures = 0;
+        while (remaining.get() > 0) {
+            Long offset;
+            try {
+                offset = chunks.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (offset == null) {
+                //others still busy, a chunk may come back if they fail
+                continue;
+            }
+            try {
+                fetchChunk(host, channel, offset, Math.min(CHUNK_SIZE, total - offset), total);
+                remaining.decrementAndGet();
+                failures = 0;
+            } catch (IOException e) {
+                Nodes.logger.log(Level.WARNING, "{0} failed on chunk {1}: {2}", new Object[]{host, offset, e.getMessage()});
+                chunks.addFirst(offset);
+                if (e instanceof HolderMismatchException || ++failures >= MAX_FAILURES) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RETRY_BACKOFF * failures + ThreadLocalRandom.current().nextLong(RETRY_BACKOFF));
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetch one byte range from a holder into the file, over a kept-alive connection.
+     * Plain sockets are used so that the read timeout also covers the file body.
+     *
+     * @param expectedTotal size the holder must report, -1 if not known yet.
+     * @return the file template the holder answered with.
+     * @throws IOException when the holder does not serve exactly the requested range.
+     */
+    private FileTemplate fetchChunk(Host host, FileChannel channel, long offset, long length, long expectedTotal) throws IOException {
+        //no relay, the holder has to have it locally
+        FetchMessage fetchMessage = new FetchMessage(resource, 0, offset, length);
+        fetchMessage.setKeepAlive(true);
+        String JSON = gson.toJson(fetchMessage);
+        return connectionPool.execute(host, CONNECT_TIMEOUT, connection -> {
+            Socket socket = connection.getSocket();
+            socket.setSoTimeout(READ_TIMEOUT);
+            DataInputStream input = connection.getInput();
+            DataOutputStream output = connection.getOutput();
+
+            output.writeUTF(JSON);
+            output.flush();
+
+            String response = input.readUTF();
+            if (!response.contains("success")) {
+                throw new IOException(response);
+            }
+            response = input.readUTF();
+            if (response.contains("resultSize")) {
+                throw new HolderMismatchException("resource not held");
+            }
+            FileTemplate fileTemplate = gson.fromJson(response, FileTemplate.class);
+            if (fileTemplate.getOffset() != offset
+                    || (expectedTotal >= 0 && fileTemplate.getResourceSize() != expectedTotal)
+                    || (expectedTotal >= 0 && fileTemplate.getLength() != length)) {
+                throw new HolderMismatchException("holder serves a different version");
+            }
+            Downloader.receive(input, channel, offset, fileTemplate.getLength());
+            //discard result size
+            input.readUTF();
+            return fileTemplate;
+        });
+    }
+}
@@ -0,0 +1,69 @@
+package EZShare.client;
+
+import EZShare.util.BufferPool;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Receives file bytes that follow a FileTemplate in a fetch response.
+ * Sizes are 64-bit, the target file is sized up front, and data is moved through large
+ * pooled buffers. Data is read from the socket's stream so that its SO_TIMEOUT applies, and a
+ * stalled server ends the download with a SocketTimeoutException instead of hanging it.
+ */
+public class Downloader {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, 8);
+
+    /**
+     * Download a whole resource into a file, replacing any previous content.
+     *
+     * @param input  the input stream of the socket, positioned right after the FileTemplate.
+     * @param target the file to write.
+     * @param size   resource size announced in the FileTemplate.
+     * @throws IOException Exception in socket or file stream.
+     */
+    public static void download(InputStream input, File target, long size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            //allocate the whole file at once, also drops stale bytes of an older, longer copy
+            file.setLength(size);
+            receive(input, file.getChannel(), 0, size);
+        }
+    }
+
+    /**
+     * Copy exactly count bytes from the socket into the file at the given position.
+     *
+     * @param input    the input stream of the socket.
+     * @param target   the file channel to write into.
+     * @param position offset in the file.
+     * @param count    number of bytes to receive.
+     * @throws IOException Exception in socket or file stream, EOFException if the peer stops early.
+     */
+    public static void receive(InputStream input, FileChannel target, long position, long count) throws IOException {
+        byte[] buffer = bufferPool.acquire();
+        try {
+            ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+            long received = 0;
+            while (received < count) {
+                int n = input.read(buffer, 0, (int) Math.min(buffer.length, count - received));
+                if (n < 0) {
+                    throw new EOFException("connection closed after " + received + " of " + count + " bytes");
+                }
+                wrapper.clear();
+                wrapper.limit(n);
+                while (wrapper.hasRemaining()) {
+                    received += target.write(wrapper, position + received);
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+}
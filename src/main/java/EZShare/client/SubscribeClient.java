@@ -0,0 +1,152 @@
+package EZShare.client;
+
+import EZShare.Nodes;
+import EZShare.message.SubscribeMessage;
+import EZShare.message.UnsubscribeMessage;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Holds one subscription open and prints what the server notifies, until the user presses
+ * enter or the server closes the connection. A reader thread blocks on the socket and a
+ * watcher thread blocks on stdin, so an idle subscription uses no CPU.
+ */
+public class SubscribeClient {
+
+    private static final long UNSUBSCRIBE_TIMEOUT = 3000;//ms to wait for the result size
+
+    private final Socket socket;
+    private final SubscribeMessage subscribeMessage;
+    private final PrintStream out;
+    private final Gson gson = new Gson();
+    private final JsonParser parser = new JsonParser();
+    /* counted down by whichever comes first: enter on stdin, or the end of the connection */
+    private final CountDownLatch stop = new CountDownLatch(1);
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile boolean stopRequested = false;
+
+    /**
+     * @param socket           the socket connected to the server.
+     * @param subscribeMessage the subscription to hold.
+     * @param out              where notified resources are printed.
+     */
+    public SubscribeClient(Socket socket, SubscribeMessage subscribeMessage, PrintStream out) {
+        this.socket = socket;
+        this.subscribeMessage = subscribeMessage;
+        this.out = out;
+    }
+
+    /**
+     * Subscribe and print notified resources until enter is pressed on stdin, then unsubscribe.
+     * If stdin is closed rather than interactive, the subscription lasts until the server ends it.
+     *
+     * @param stdin the user's input.
+     * @throws IOException Exception in socket stream before the subscription is in place.
+     */
+    public void run(InputStream stdin) throws IOException {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+
+        Nodes.logger.fine("subscribing to :" + socket.getRemoteSocketAddress());
+        send(output, gson.toJson(subscribeMessage));
+        String response = input.readUTF();
+        if (!response.contains("success")) {
+            Nodes.logger.warning("RECEIVED:" + response);
+            return;
+        }
+        Nodes.logger.fine("RECEIVED:" + response);
+        if (subscribeMessage.getResumeFrom() != null) {
+            //latest sequence number, and whether resources were missed so that a query is needed
+            out.println(response);
+        }
+
+        //notifications may take any time to come
+        socket.setSoTimeout(0);
+        Thread reader = new Thread(() -> read(input), "subscribe-reader");
+        reader.setDaemon(true);
+        reader.start();
+        Thread watcher = new Thread(() -> watch(stdin), "subscribe-stdin");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        try {
+            stop.await();
+            if (stopRequested) {
+                //Termination
+                send(output, gson.toJson(new UnsubscribeMessage(subscribeMessage.getId())));
+                if (!finished.await(UNSUBSCRIBE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    Nodes.logger.warning("no result size from " + socket.getRemoteSocketAddress());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void send(DataOutputStream output, String JSON) throws IOException {
+        output.writeUTF(JSON);
+        output.flush();
+        Nodes.logger.fine("SENT:" + JSON);
+    }
+
+    private void read(DataInputStream input) {
+        try {
+            while (true) {
+                String frame = input.readUTF();
+                if (frame.startsWith("{\"resultSize\"")) {
+                    Nodes.logger.info("RECEIVED:" + frame);
+                    break;
+                } else if (frame.startsWith("{\"response\"")) {
+                    //answers to the subscription itself, not resources
+                    Nodes.logger.log(frame.contains("error") ? Level.WARNING : Level.FINE, "RECEIVED:" + frame);
+                } else {
+                    print(frame);
+                }
+            }
+        } catch (IOException e) {
+            if (!stopRequested) {
+                Nodes.logger.info("subscription closed by " + socket.getRemoteSocketAddress());
+            }
+        }
+        finished.countDown();
+        stop.countDown();
+    }
+
+    private void watch(InputStream stdin) {
+        try {
+            //blocks until the user types something; -1 means there is no user to wait for
+            if (stdin.read() >= 0) {
+                stopRequested = true;
+                stop.countDown();
+            }
+        } catch (IOException e) {
+            Nodes.logger.fine("stdin unreadable, subscribing until the server ends it");
+        }
+    }
+
+    /**
+     * Print a notified resource, or each resource of a batch.
+     */
+    private void print(String frame) {
+        if (frame.startsWith("{\"resources\":")) {
+            JsonObject batch = parser.parse(frame).getAsJsonObject();
+            for (JsonElement resource : batch.getAsJsonArray("resources")) {
+                out.println(gson.toJson(resource));
+            }
+        } else {
+            out.println(frame);
+        }
+    }
+}
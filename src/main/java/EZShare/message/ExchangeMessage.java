@@ -1,30 +1,117 @@
 package EZShare.message;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Encapsulation of Exchange Command.
+ * A server may also send its content summary (the filter bits of ContentSummary) together
+ * with its own address as origin; with summarySubscribe set, the receiver answers with its
+ * own summary and sends updates of it to the origin later on. The server list may then be empty.
+ * Servers gossip with each other using versioned deltas: the server list then only holds the
+ * servers added and removed the servers dropped since version "since" of the sender's list.
  * Created by jason on 11/4/17.
  */
 public class ExchangeMessage extends Message{
 
     private final List<Host> serverList;
+    private Host origin;
+    private String summary;
+    private Boolean summarySubscribe;
+    private List<Host> removed;
+    private Long version;
+    private Long since;
 
     public ExchangeMessage(List<Host> serverList){
         super("EXCHANGE");
         this.serverList = serverList;
     }
 
+    /**
+     * Exchange of content summaries between servers.
+     *
+     * @param serverList       servers to add, may be empty.
+     * @param origin           the sending server.
+     * @param summary          summary of the sending server.
+     * @param summarySubscribe whether the receiver should answer with and keep sending its summary.
+     */
+    public ExchangeMessage(List<Host> serverList, Host origin, String summary, boolean summarySubscribe) {
+        this(serverList);
+        this.origin = origin;
+        this.summary = summary;
+        this.summarySubscribe = summarySubscribe;
+    }
+
+    /**
+     * Gossip between servers.
+     *
+     * @param added   servers added to the sender's list since the receiver last heard from it.
+     * @param removed servers dropped from the sender's list since then.
+     * @param origin  the sending server.
+     * @param summary summary of the sending server.
+     * @param version version of the sender's list.
+     * @param since   version of the receiver's list the sender already knows, 0 for none.
+     */
+    public ExchangeMessage(List<Host> added, List<Host> removed, Host origin, String summary, long version, long since) {
+        this(added, origin, summary, false);
+        this.removed = removed;
+        this.version = version;
+        this.since = since;
+    }
+
     public List<Host> getServerList() {
         return serverList;
     }
 
+    public Host getOrigin() {
+        return origin;
+    }
+
+    public String getSummary() {
+        return summary;
+    }
+
+    public boolean hasSummary() {
+        return origin != null && summary != null;
+    }
+
+    public boolean isSummarySubscribe() {
+        return summarySubscribe != null && summarySubscribe;
+    }
+
+    public boolean isGossip() {
+        return version != null && origin != null;
+    }
+
+    public List<Host> getRemoved() {
+        return removed == null ? Collections.<Host>emptyList() : removed;
+    }
+
+    public long getVersion() {
+        return version == null ? 0 : version;
+    }
+
+    public long getSince() {
+        return since == null ? 0 : since;
+    }
+
     /**
      * Validate every host in list.
      * @return Whether serverList is valid.
      */
     @Override
     public boolean isValid() {
+        if (origin != null && !origin.isValid()) {
+            return false;
+        }
+        for (Host h : getRemoved()) {
+            if (!h.isValid()) {
+                return false;
+            }
+        }
+        if (serverList == null) {
+            return true;
+        }
         for (Host h:serverList) {
             if(!h.isValid()){
                 return false;
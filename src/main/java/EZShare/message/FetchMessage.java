@@ -17,6 +17,10 @@ public class FetchMessage extends Message{
     public int getMxHops(){return this.mxHops;}
     public void setMxHops(int mxHops){this.mxHops = mxHops;}
 
+    /* Optional byte range, absent for a whole-file fetch */
+    private Long offset;
+    private Long length;
+
     public FetchMessage(ResourceTemplate resource,int mxHops){
         super("FETCH");
         this.resourceTemplate = resource;
@@ -24,6 +28,32 @@ public class FetchMessage extends Message{
         this.relay = true;
     }
 
+    /**
+     * Fetch only part of the file.
+     * @param offset first byte to send.
+     * @param length number of bytes to send.
+     */
+    public FetchMessage(ResourceTemplate resource,int mxHops,long offset,long length){
+        this(resource,mxHops);
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public boolean isRanged() {
+        return offset != null || length != null;
+    }
+
+    public long getOffset() {
+        return offset == null ? 0 : offset;
+    }
+
+    /**
+     * @return requested number of bytes, or -1 for the rest of the file.
+     */
+    public long getLength() {
+        return length == null ? -1 : length;
+    }
+
     public ResourceTemplate getResource() {
         return resourceTemplate;
     }
@@ -34,6 +64,7 @@ public class FetchMessage extends Message{
      */
     @Override
     public boolean isValid() {
-        return resourceTemplate.isValid()&&resourceTemplate.isValidFile();
+        return resourceTemplate.isValid()&&resourceTemplate.isValidFile()
+                &&(offset==null||offset>=0)&&(length==null||length>=0);
     }
 }
@@ -13,6 +13,9 @@ public class FileTemplate extends ResourceTemplate {
         
      */
     private long resourceSize = 0;
+    /* Only present when answering a ranged fetch, the bytes that follow are [offset, offset+length) */
+    private Long offset;
+    private Long length;
 
     /**
      * Only for gson.
@@ -31,8 +34,25 @@ public class FileTemplate extends ResourceTemplate {
         this.resourceSize = resourceSize;
     }
 
+    public FileTemplate(ResourceTemplate r,long resourceSize,long offset,long length){
+        this(r,resourceSize);
+        this.offset = offset;
+        this.length = length;
+    }
+
     public long getResourceSize() {
         return resourceSize;
     }
 
+    public long getOffset() {
+        return offset == null ? 0 : offset;
+    }
+
+    /**
+     * @return number of bytes following this template.
+     */
+    public long getLength() {
+        return length == null ? resourceSize : length;
+    }
+
 }
@@ -1,5 +1,7 @@
 package EZShare.message;
 
+import java.util.Objects;
+
 /**
  * Encapsulation of Hostname and port #
  * Created by jason on 9/4/17.
@@ -23,15 +25,33 @@ public class Host extends Validatable {
 
     /**
      * Only able to check port number at this stage.
-     * @return  Whether the port number is valid.
+     * @return  Whether the hostname is given and the port number is valid.
      */
     @Override
     public boolean isValid() {
-        return port<=65535&&port>=1;
+        return hostname != null && port != null && port<=65535&&port>=1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Host)) {
+            return false;
+        }
+        Host host = (Host) o;
+        //hosts parsed from peers may lack either field
+        return Objects.equals(hostname, host.hostname) && Objects.equals(port, host.port);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(hostname, port);
     }
 
     @Override
     public String toString() {
-        return hostname+":"+port.toString();
+        return hostname+":"+port;
     }
 }
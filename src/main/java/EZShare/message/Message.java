@@ -11,6 +11,8 @@ public class Message extends Validatable {
     private static final String[] valid_commands = {"QUERY","SHARE","PUBLISH","REMOVE","EXCHANGE","FETCH","EXCHANGEKEY"};
 
     private final String command;
+    /* Ask the server to keep the connection open for further requests, absent means close */
+    private Boolean keepAlive;
 
     public Message(String command){
         this.command = command;
@@ -20,6 +22,14 @@ public class Message extends Validatable {
         return command;
     }
 
+    public boolean isKeepAlive() {
+        return keepAlive != null && keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive ? Boolean.TRUE : null;
+    }
+
     /**
      * Validate command name. IMPORTANT:CASE SENSITIVE!
      * @return  Whether the command name is valid.
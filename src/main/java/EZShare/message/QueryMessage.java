@@ -13,6 +13,8 @@ public class QueryMessage extends Message {
     private boolean relay;
     private final ResourceTemplate resourceTemplate;
     private int mxHops;
+    /* Same id on every copy of a relayed query, so nodes can drop copies arriving by other paths */
+    private String queryId;
     public void setRelay(boolean relay) {
         this.relay = relay;
     }
@@ -23,6 +25,12 @@ public class QueryMessage extends Message {
         this.relay = relay;
         this.mxHops = mxHops;
     }
+    public String getQueryId() {
+        return queryId;
+    }
+    public void setQueryId(String queryId) {
+        this.queryId = queryId;
+    }
     public int getMxHops(){return this.mxHops;}
     public void setMxHops(int mxHops){this.mxHops = mxHops;}
     public ResourceTemplate getResourceTemplate() {
@@ -5,6 +5,7 @@ import com.google.gson.Gson;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
+import java.util.TreeSet;
 
 /**
  * Encapsulation of Query Message.
@@ -118,6 +119,17 @@ public class ResourceTemplate extends Validatable {
         return new Gson().toJson(this);
     }
 
+    /**
+     * A key identifying the query this template describes, equal for templates that match
+     * the same resources: tag order and repeated tags are ignored, ezserver plays no part.
+     *
+     * @return The key.
+     */
+    public String queryKey() {
+        Object[] parts = {channel, owner, uri, name, description, new TreeSet<>(Arrays.asList(tags))};
+        return new Gson().toJson(parts);
+    }
+
 
     /**
      * Check if two resourceTemplate objects match in the query.
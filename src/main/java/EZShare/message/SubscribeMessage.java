@@ -11,6 +11,9 @@ public class SubscribeMessage extends Message {
     private String id;
     private ResourceTemplate resourceTemplate;
     private int mxHops;
+    private Boolean batch;//optional, notifications in {"resources":[...]} frames
+    private Long resumeFrom;//optional, replay changes after this sequence number, negative for none
+    private Long epoch;//optional, epoch of the node resumeFrom was numbered in
     public SubscribeMessage(boolean relay, String id, ResourceTemplate resourceTemplate, int mxHops ) {
         super("SUBSCRIBE");
         this.relay = relay;
@@ -34,8 +37,42 @@ public class SubscribeMessage extends Message {
         return id;
     }
 
+    public boolean isBatch() {
+        return batch != null && batch;
+    }
+
+    public void setBatch(boolean batch) {
+        this.batch = batch ? Boolean.TRUE : null;
+    }
+
+    /**
+     * @return sequence number of the last change seen, null for a subscription that is not resumable.
+     */
+    public Long getResumeFrom() {
+        return resumeFrom;
+    }
+
+    public void setResumeFrom(Long resumeFrom) {
+        this.resumeFrom = resumeFrom;
+    }
+
+    /**
+     * @return epoch of the node the resumeFrom sequence number comes from, null if not known.
+     */
+    public Long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(Long epoch) {
+        this.epoch = epoch;
+    }
+
+    /**
+     * Channel and tags are looked up when matching resources, so they must be present.
+     */
     @Override
     public boolean isValid() {
-        return resourceTemplate.isValid() && id != null;
+        return resourceTemplate.isValid() && resourceTemplate.getChannel() != null && resourceTemplate.getTag() != null
+                && id != null;
     }
 }
@@ -0,0 +1,88 @@
+package EZShare.server;
+
+import EZShare.message.ResourceTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resources notified by this node, numbered in the order they were committed. The latest
+ * ones are kept in a ring so that a subscriber coming back after a dropped connection can be
+ * sent what it missed. Numbers start again from 1 when the node restarts, so they are only
+ * meaningful together with the epoch, the time this log was started.
+ */
+public class ChangeLog {
+
+    /**
+     * One notified resource with its sequence number.
+     */
+    public static class Change {
+        private final long seq;
+        private final ResourceTemplate resource;
+
+        private Change(long seq, ResourceTemplate resource) {
+            this.seq = seq;
+            this.resource = resource;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public ResourceTemplate getResource() {
+            return resource;
+        }
+    }
+
+    private final Change[] ring;
+    private final long epoch = System.currentTimeMillis();
+    private long latest = 0;
+
+    /**
+     * @param capacity changes kept for replay.
+     */
+    public ChangeLog(int capacity) {
+        this.ring = new Change[capacity];
+    }
+
+    /**
+     * @return the change, numbered one after the latest.
+     */
+    public synchronized Change append(ResourceTemplate resource) {
+        Change change = new Change(++latest, resource);
+        ring[(int) (change.seq % ring.length)] = change;
+        return change;
+    }
+
+    /**
+     * @return the epoch sequence numbers of this log belong to.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return sequence number of the latest change, 0 if there was none.
+     */
+    public synchronized long getLatest() {
+        return latest;
+    }
+
+    /**
+     * @return sequence number of the oldest change still kept.
+     */
+    public synchronized long getOldest() {
+        return Math.max(1, latest - ring.length + 1);
+    }
+
+    /**
+     * @return kept changes numbered after from and up to to, oldest first.
+     */
+    public synchronized List<Change> between(long from, long to) {
+        List<Change> changes = new ArrayList<>();
+        for (long seq = Math.max(from + 1, getOldest()); seq <= Math.min(to, latest); seq++) {
+            changes.add(ring[(int) (seq % ring.length)]);
+        }
+        return changes;
+    }
+}
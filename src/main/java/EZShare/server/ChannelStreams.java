@@ -0,0 +1,69 @@
+package EZShare.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Streams that read and write a blocking socket channel directly. The streams of a channel's
+ * socket hold the channel's blocking lock for every read and write, so on Java 8 a read that
+ * blocks keeps another thread from writing. These take only the channel's own read and write
+ * locks, so one thread can wait for input while another writes. They ignore SO_TIMEOUT.
+ */
+public class ChannelStreams {
+
+    private ChannelStreams() {
+    }
+
+    public static InputStream input(SocketChannel channel) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int num;
+                //a blocking channel reads at least one byte unless at end of stream
+                while ((num = channel.read(ByteBuffer.wrap(b, off, len))) == 0) {
+                    Thread.yield();
+                }
+                return num;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    public static OutputStream output(SocketChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
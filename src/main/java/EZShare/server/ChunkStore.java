@@ -0,0 +1,232 @@
+package EZShare.server;
+
+import EZShare.message.ResourceTemplate;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed cache of file content passing through this node.
+ * Files are cut into fixed-size chunks keyed by their SHA-256, so identical content shared
+ * under several URIs is held once. A manifest per (channel, uri) lists the chunks of a file.
+ * Chunks are evicted least recently used once the byte budget is exceeded; a manifest whose
+ * chunks are gone simply stops being served. A manifest also expires after a time to live, so
+ * a file changed or removed at its origin is fetched from there again rather than served stale.
+ * Expired manifests are swept whenever a file is added, so they are bounded by the files
+ * cached within one time to live.
+ * Files this node holds itself are not cached, they are sent from disk through the page cache.
+ */
+public class ChunkStore {
+
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The chunk list of one cached file.
+     */
+    private static class Manifest {
+        private final ResourceTemplate resource;
+        private final long size;
+        private final List<String> hashes;
+        private final long expiresAt;
+
+        private Manifest(ResourceTemplate resource, long size, List<String> hashes, long expiresAt) {
+            this.resource = resource;
+            this.size = size;
+            this.hashes = Collections.unmodifiableList(hashes);
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A cached file whose chunks are held for the duration of one transfer.
+     */
+    public static class Pinned {
+        private final ResourceTemplate resource;
+        private final long size;
+        private final List<byte[]> chunks;
+
+        private Pinned(ResourceTemplate resource, long size, List<byte[]> chunks) {
+            this.resource = resource;
+            this.size = size;
+            this.chunks = chunks;
+        }
+
+        public ResourceTemplate getResource() {
+            return resource;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return chunks in file order, all CHUNK_SIZE long except the last.
+         */
+        public List<byte[]> getChunks() {
+            return chunks;
+        }
+    }
+
+    /**
+     * Splits a byte stream into chunks and stores them. Call finish() once all bytes
+     * are written to publish the manifest.
+     */
+    public class Writer {
+        private final String key;
+        private final ResourceTemplate resource;
+        private final long size;
+        private final List<String> hashes = new ArrayList<>();
+        private byte[] current = new byte[CHUNK_SIZE];
+        private int filled = 0;
+        private long written = 0;
+
+        private Writer(String key, ResourceTemplate resource, long size) {
+            this.key = key;
+            this.resource = resource;
+            this.size = size;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE - filled);
+                System.arraycopy(b, off, current, filled, n);
+                filled += n;
+                off += n;
+                len -= n;
+                written += n;
+                if (filled == CHUNK_SIZE) {
+                    hashes.add(put(current));
+                    current = new byte[CHUNK_SIZE];
+                    filled = 0;
+                }
+            }
+        }
+
+        /**
+         * @return whether the file was complete and its manifest is now served.
+         */
+        public boolean finish() {
+            if (written != size) {
+                return false;
+            }
+            if (filled > 0) {
+                hashes.add(put(Arrays.copyOf(current, filled)));
+            }
+            current = null;
+            long now = System.currentTimeMillis();
+            //a file fetched once and never again would keep its manifest forever otherwise
+            manifests.values().removeIf(m -> now >= m.expiresAt);
+            manifests.put(key, new Manifest(resource, size, hashes, now + ttl));
+            return true;
+        }
+    }
+
+    private final long budget;
+    private final long ttl;
+    private long used = 0;
+    private final LinkedHashMap<String, byte[]> chunks = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, Manifest> manifests = new ConcurrentHashMap<>();
+
+    /**
+     * @param budget maximum bytes of chunk data to hold.
+     * @param ttl    milliseconds a cached file is served before it has to be fetched again.
+     */
+    public ChunkStore(long budget, long ttl) {
+        this.budget = budget;
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return whether a file of this size is worth caching at all.
+     */
+    public boolean accepts(long size) {
+        return size <= budget / 2;
+    }
+
+    /**
+     * @param channel  channel the file is fetched under.
+     * @param uri      uri the file is fetched under.
+     * @param resource description of the file to answer later fetches with.
+     * @param size     number of bytes that will be written.
+     */
+    public Writer newWriter(String channel, String uri, ResourceTemplate resource, long size) {
+        return new Writer(key(channel, uri), resource, size);
+    }
+
+    /**
+     * Look up a cached file and hold on to all of its chunks so eviction cannot break the
+     * transfer halfway.
+     *
+     * @return the pinned file, or null if it is not (or no longer fully) cached, or expired.
+     */
+    public Pinned pin(String channel, String uri) {
+        Manifest manifest = manifests.get(key(channel, uri));
+        if (manifest == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= manifest.expiresAt) {
+            //its chunks stay until evicted, a refetch of the same content reuses them
+            manifests.remove(key(channel, uri), manifest);
+            return null;
+        }
+        List<byte[]> pinned = new ArrayList<>(manifest.hashes.size());
+        synchronized (this) {
+            for (String hash : manifest.hashes) {
+                byte[] chunk = chunks.get(hash);
+                if (chunk == null) {
+                    manifests.remove(key(channel, uri), manifest);
+                    return null;
+                }
+                pinned.add(chunk);
+            }
+        }
+        return new Pinned(manifest.resource, manifest.size, pinned);
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    private String put(byte[] chunk) {
+        String hash = sha256(chunk);
+        synchronized (this) {
+            //identical content is stored once, a hit only refreshes its position
+            if (chunks.get(hash) == null) {
+                chunks.put(hash, chunk);
+                used += chunk.length;
+                Iterator<Map.Entry<String, byte[]>> it = chunks.entrySet().iterator();
+                while (used > budget && it.hasNext()) {
+                    Map.Entry<String, byte[]> eldest = it.next();
+                    used -= eldest.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static String key(String channel, String uri) {
+        return channel + "\n" + uri;
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package EZShare.server;
+
+import java.util.Base64;
+import java.util.Collection;
+
+/**
+ * Compact summary of the resources a node holds: a counting Bloom filter over the
+ * (channel, uri) of every resource and over every tag. A node keeps the counting filter of
+ * its own file list up to date and sends peers only the bits (a counter above zero), from
+ * which they can tell that the node surely does not hold a key, or may hold it.
+ */
+public class ContentSummary {
+
+    public static final int SIZE = 16384;//counters, 2KB as bits on the wire
+    private static final int HASHES = 4;
+
+    private final byte[] counters;
+    private final long created = System.currentTimeMillis();
+
+    public ContentSummary() {
+        this.counters = new byte[SIZE];
+    }
+
+    private ContentSummary(byte[] counters) {
+        this.counters = counters;
+    }
+
+    public static String uriKey(String channel, String uri) {
+        return "u\n" + channel + "\n" + uri;
+    }
+
+    public static String tagKey(String tag) {
+        return "t\n" + tag;
+    }
+
+    public synchronized void add(String key) {
+        for (int i = 0; i < HASHES; i++) {
+            int index = index(key, i);
+            //a saturated counter stays, it can no longer be decremented safely
+            if (counters[index] != Byte.MAX_VALUE) {
+                counters[index]++;
+            }
+        }
+    }
+
+    public synchronized void remove(String key) {
+        for (int i = 0; i < HASHES; i++) {
+            int index = index(key, i);
+            if (counters[index] != Byte.MAX_VALUE && counters[index] > 0) {
+                counters[index]--;
+            }
+        }
+    }
+
+    /**
+     * @return false if the key was surely never added, true if it may have been.
+     */
+    public synchronized boolean mightContain(String key) {
+        for (int i = 0; i < HASHES; i++) {
+            if (counters[index(key, i)] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if any of the keys was surely never added.
+     */
+    public boolean mightContainAll(Collection<String> keys) {
+        for (String key : keys) {
+            if (!mightContain(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return milliseconds since this summary was built or received.
+     */
+    public long getAge() {
+        return System.currentTimeMillis() - created;
+    }
+
+    /**
+     * @return the filter bits, base64 encoded.
+     */
+    public synchronized String toWire() {
+        byte[] bits = new byte[SIZE / 8];
+        for (int i = 0; i < SIZE; i++) {
+            if (counters[i] != 0) {
+                bits[i >> 3] |= 1 << (i & 7);
+            }
+        }
+        return Base64.getEncoder().encodeToString(bits);
+    }
+
+    /**
+     * @param wire filter bits as sent by toWire().
+     * @return a summary for lookups only, or null if the bits are malformed.
+     */
+    public static ContentSummary fromWire(String wire) {
+        byte[] bits;
+        try {
+            bits = Base64.getDecoder().decode(wire);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (bits.length != SIZE / 8) {
+            return null;
+        }
+        byte[] counters = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            if ((bits[i >> 3] & (1 << (i & 7))) != 0) {
+                counters[i] = 1;
+            }
+        }
+        return new ContentSummary(counters);
+    }
+
+    /**
+     * Double hashing: the i-th position is h1 + i * h2, with h2 an FNV-1a hash so that it
+     * is independent of String.hashCode.
+     */
+    private static int index(String key, int i) {
+        int h1 = key.hashCode();
+        int h2 = 0x811c9dc5;
+        for (int c = 0; c < key.length(); c++) {
+            h2 ^= key.charAt(c);
+            h2 *= 0x01000193;
+        }
+        //odd, so that the positions do not collapse when h2 shares factors with SIZE
+        h2 |= 1;
+        return Math.floorMod(h1 + i * h2, SIZE);
+    }
+}
@@ -6,13 +6,14 @@ import EZShare.message.SubscribeMessage;
 import com.google.gson.Gson;
 
 import javax.xml.soap.Node;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
@@ -25,59 +26,172 @@ public class FileList {
     private List<ResourceTemplate> resourceTemplateList = new ArrayList<>();
     private ReadWriteLock lock = new ReentrantReadWriteLock();
     private Gson gson = new Gson();
+    /* Keys of all resources held, kept in step with the list under its write lock */
+    private final ContentSummary summary = new ContentSummary();
+    private Runnable summaryListener;
+    /* Notifications are numbered under the write lock and sent after it is released, in that order */
+    private final ChangeLog changeLog = new ChangeLog(Nodes.REPLAY_BUFFER);
+    private final NotificationDispatcher dispatcher = new NotificationDispatcher(this::sendNotification);
 
 
     /**
      * Send notification to socket which linked to the client that subscribed the relevant resources.
      *
-     * @param candidate The published or shared resource.
+     * @param change The published, shared or relayed resource with its sequence number.
      */
-    public void sendNotification(ResourceTemplate candidate) {
+    public void sendNotification(ChangeLog.Change change) {
 
-        //Travers all unrelayed subscriptions.
-        for (Map.Entry<Socket, Subscription> s : Nodes.subscriptions.entrySet()) {
+        ResourceTemplate candidate = change.getResource();
+        String plain = null;
 
-            //get socket
-            Socket socket = s.getKey();
+        //ids matched per subscriber, each subscriber is sent the resource once
+        Map<Socket, List<String>> matched = new LinkedHashMap<>();
+        Map<Socket, Subscription> subscribers = new HashMap<>();
+
+        //only subscriptions the index cannot rule out
+        for (SubscriptionIndex.Entry entry : Nodes.subscriptionIndex.candidates(candidate)) {
 
-            //note down whether the message has been sent to this socket
-            boolean sent = false;
+            //get socket
+            Socket socket = entry.getSocket();
+            Subscription subscription = Nodes.subscriptions.get(socket);
 
             //get query conditions
-            for (Map.Entry<SubscribeMessage, Integer> entry : s.getValue().getSubscribeMessage().entrySet()) {
+            ResourceTemplate query = entry.getMessage().getResourceTemplate();
 
-                ResourceTemplate query = entry.getKey().getResourceTemplate();
+            //if the resource matches the subscription, and was not replayed to it
+            if (subscription != null && subscription.getOutbound() != null && query.match(candidate)
+                    && !(subscription.isSequenced() && change.getSeq() <= subscription.getFloor())) {
+                matched.computeIfAbsent(socket, k -> new ArrayList<>()).add(entry.getMessage().getId());
+                subscribers.put(socket, subscription);
+            }
+        }
 
-                //if the resource matches the subscription.
-                if (query.match(candidate)) {
-                    try {
-                        if (!sent) {
-                            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
-                            //send resource to that particular socket.
-
-                            String c = gson.toJson(candidate);
-                            ResourceTemplate encrypted_candidate = gson.fromJson(c, ResourceTemplate.class);
-
-                            output.writeUTF(gson.toJson(encrypted_candidate, ResourceTemplate.class));
-                            output.flush();
-                            Nodes.logger.log(Level.FINE, "Matched resource sent:" + candidate, socket.getRemoteSocketAddress().toString());
-                            //set sent to true to prevent send a same resource twice
-                            sent = true;
-                        }
-                        //increase result size
-                        Nodes.subscriptions.get(socket).addResult(entry.getKey().getId());
-                        //break to avoid send one message several times
+        for (Map.Entry<Socket, List<String>> m : matched.entrySet()) {
+            Socket socket = m.getKey();
+            Subscription subscription = subscribers.get(socket);
+            //queue resource for that particular socket, its writer sends it and counts the result.
+            if (plain == null) {
+                plain = gson.toJson(candidate, ResourceTemplate.class);
+            }
+            String c = subscription.isSequenced() ? sequenced(change.getSeq(), plain) : plain;
+            if (!subscription.getOutbound().offer(candidate.getChannel() + "\n" + candidate.getUri(), c,
+                    subscription.resultCounter(m.getValue()))) {
+                Nodes.logger.log(Level.WARNING, "{0} : subscribed resource not queued", socket.getRemoteSocketAddress());
+                continue;
+            }
+            Nodes.logger.log(Level.FINE, "Matched resource queued:" + candidate, socket.getRemoteSocketAddress().toString());
+        }
+
+    }
 
+    /**
+     * Notify matching subscribers of a resource, asynchronously.
+     *
+     * @param candidate The published, shared or relayed resource.
+     */
+    public void notifySubscribers(ResourceTemplate candidate) {
+        //reentrant, commits notify while holding it already
+        lock.writeLock().lock();
+        try {
+            dispatcher.submit(changeLog.append(candidate));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-                    } catch (IOException e) {
-                        Nodes.logger.log(Level.WARNING, "{0} IOException when sending subscribed resource! ", e.getMessage());
+    /**
+     * Register a subscription that carries on after the last change its subscriber has seen.
+     * Changes after it that are still kept are queued to the subscriber right behind the
+     * success response, and notifications of later changes follow them; all frames of the
+     * subscription carry sequence numbers.
+     *
+     * @param subscription the subscription, with its outbound queue.
+     * @param resumeFrom   sequence number of the last change seen, negative to start from now.
+     * @param epoch        epoch resumeFrom was numbered in, null if not known.
+     * @param register     puts the subscription in place.
+     * @param success      builds the success response from the latest sequence number and
+     *                     whether every change after resumeFrom could be replayed.
+     */
+    public void resume(Subscription subscription, long resumeFrom, Long epoch, Runnable register, BiFunction<Long, Boolean, String> success) {
+        //no change can be numbered meanwhile, the dispatcher skips those up to latest for this subscription
+        lock.writeLock().lock();
+        try {
+            long latest = changeLog.getLatest();
+            //numbers from before a restart name other changes, nothing can be replayed for them
+            boolean known = resumeFrom >= 0 && epoch != null && epoch == changeLog.getEpoch();
+            boolean complete = resumeFrom < 0 || (known && resumeFrom <= latest && resumeFrom + 1 >= changeLog.getOldest());
+            List<ChangeLog.Change> missed = !known || resumeFrom > latest
+                    ? new ArrayList<>() : changeLog.between(resumeFrom, latest);
+            //changes to replay, with the ids of the subscribe messages each matches
+            Map<ChangeLog.Change, List<String>> replay = new LinkedHashMap<>();
+            for (ChangeLog.Change change : missed) {
+                List<String> ids = new ArrayList<>();
+                for (SubscribeMessage message : subscription.getSubscribeMessages()) {
+                    if (message.getResourceTemplate().match(change.getResource())) {
+                        ids.add(message.getId());
                     }
                 }
+                if (!ids.isEmpty()) {
+                    replay.put(change, ids);
+                }
             }
+            SubscriberQueue outbound = subscription.getOutbound();
+            //more than the queue holds could be dropped on the way, the subscriber has to query then
+            complete = complete && replay.size() <= outbound.getCapacity();
+            subscription.resumeAfter(latest);
+            register.run();
+            outbound.sendControl(success.apply(latest, complete));
+            for (Map.Entry<ChangeLog.Change, List<String>> r : replay.entrySet()) {
+                ChangeLog.Change change = r.getKey();
+                ResourceTemplate candidate = change.getResource();
+                outbound.offer(candidate.getChannel() + "\n" + candidate.getUri(),
+                        sequenced(change.getSeq(), gson.toJson(candidate, ResourceTemplate.class)),
+                        subscription.resultCounter(r.getValue()));
+            }
+            Nodes.logger.log(Level.FINE, "{0} changes replayed after " + resumeFrom, replay.size());
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
+
+    /**
+     * @return the epoch of the sequence numbers of notifications, the time this node started.
+     */
+    public long getEpoch() {
+        return changeLog.getEpoch();
+    }
+
+    private static String sequenced(long seq, String resource) {
+        return "{\"seq\":" + seq + ",\"resource\":" + resource + "}";
+    }
+
+    public ContentSummary getSummary() {
+        return summary;
+    }
+
+    /**
+     * @param summaryListener run after every change of the summary, must not block.
+     */
+    public void setSummaryListener(Runnable summaryListener) {
+        this.summaryListener = summaryListener;
+    }
 
+    private void addToSummary(ResourceTemplate resourceTemplate) {
+        summary.add(ContentSummary.uriKey(resourceTemplate.getChannel(), resourceTemplate.getUri()));
+        for (String tag : resourceTemplate.getTag()) {
+            summary.add(ContentSummary.tagKey(tag));
+        }
+        if (summaryListener != null) {
+            summaryListener.run();
+        }
     }
 
+    private void removeFromSummary(ResourceTemplate resourceTemplate) {
+        summary.remove(ContentSummary.uriKey(resourceTemplate.getChannel(), resourceTemplate.getUri()));
+        for (String tag : resourceTemplate.getTag()) {
+            summary.remove(ContentSummary.tagKey(tag));
+        }
+    }
 
     /**
      * add a new file to filelist
@@ -90,7 +204,9 @@ public class FileList {
         try {
             if (resourceTemplateList.isEmpty()) {
                 resourceTemplateList.add(resourceTemplate);
-                sendNotification(resourceTemplate);
+                addToSummary(resourceTemplate);
+                //queued under the lock to keep commit order, sent once it is released
+                notifySubscribers(resourceTemplate);
                 return true;
             } else {
                 for (int i = 0; i < resourceTemplateList.size(); i++) {
@@ -98,7 +214,9 @@ public class FileList {
                     if (f.getChannel().equals(resourceTemplate.getChannel()) && f.getUri().equals(resourceTemplate.getUri())) {
                         if (f.getOwner().equals(resourceTemplate.getOwner())) {
                             resourceTemplateList.set(i, resourceTemplate);
-                            sendNotification(resourceTemplate);
+                            removeFromSummary(f);
+                            addToSummary(resourceTemplate);
+                            notifySubscribers(resourceTemplate);
                             return true;
                         }
                         return false;
@@ -106,7 +224,8 @@ public class FileList {
 
                 }
                 resourceTemplateList.add(resourceTemplate);
-                sendNotification(resourceTemplate);
+                addToSummary(resourceTemplate);
+                notifySubscribers(resourceTemplate);
                 return true;
             }
         } finally {
@@ -127,6 +246,10 @@ public class FileList {
                 ResourceTemplate f = resourceTemplateList.get(i);
                 if (f.getChannel().equals(resourceTemplate.getChannel()) && f.getUri().equals(resourceTemplate.getUri()) && f.getOwner().equals(resourceTemplate.getOwner())) {
                     resourceTemplateList.remove(i);
+                    removeFromSummary(f);
+                    if (summaryListener != null) {
+                        summaryListener.run();
+                    }
                     return true;
                 }
             }
@@ -0,0 +1,53 @@
+package EZShare.server;
+
+import EZShare.Nodes;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Delivers notifications of new resources to subscribers on a thread of its own, in the order
+ * the resources were committed, so that whoever commits a resource does not wait on slow
+ * subscriber sockets.
+ */
+public class NotificationDispatcher {
+
+    private final BlockingQueue<ChangeLog.Change> queue = new LinkedBlockingQueue<>();
+    private final Consumer<ChangeLog.Change> deliver;
+
+    /**
+     * @param deliver sends one resource to all matching subscribers.
+     */
+    public NotificationDispatcher(Consumer<ChangeLog.Change> deliver) {
+        this.deliver = deliver;
+        Thread thread = new Thread(this::dispatch, "notification-dispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a change for delivery, never blocks.
+     */
+    public void submit(ChangeLog.Change change) {
+        queue.offer(change);
+    }
+
+    private void dispatch() {
+        while (true) {
+            ChangeLog.Change change;
+            try {
+                change = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                deliver.accept(change);
+            } catch (RuntimeException e) {
+                //one bad notification must not stop all later ones
+                Nodes.logger.log(Level.WARNING, "notification failed: {0}", e.toString());
+            }
+        }
+    }
+}
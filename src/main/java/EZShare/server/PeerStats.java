@@ -0,0 +1,122 @@
+package EZShare.server;
+
+/**
+ * Running statistics of relays sent to one peer, kept as exponentially weighted moving
+ * averages so that a peer's recent behaviour counts most.
+ * Also a circuit breaker: after a few failures in a row the circuit opens and the peer is
+ * skipped, except for a single probe once a backoff has passed; the backoff doubles with
+ * every failed probe. A peer whose circuit stays open for long is considered gone.
+ */
+public class PeerStats {
+
+    private static final double ALPHA = 0.2;//weight of the newest sample
+    private static final double PRIOR_LATENCY = 100;//ms, assumed until the first answer
+    private static final double LATENCY_FLOOR = 20;//ms, so that fast peers on the same host do not take everything
+    private static final double MIN_SCORE = 0.001;
+    private static final int FAILURE_THRESHOLD = 3;//failures in a row that open the circuit
+    private static final long BASE_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 60000;
+    private static final long EVICT_AFTER = 300000;//failing this long means the peer is gone
+
+    private double latency = PRIOR_LATENCY;
+    private double errorRate = 0;
+    //optimistic, a new peer should be tried before it is judged
+    private double hitRate = 0.5;
+    private long relays = 0;
+    private int consecutiveFailures = 0;
+    private long failingSince = 0;
+    private long retryAt = 0;//circuit open until then
+    private long probeStarted = 0;//0 if no probe is in flight
+
+    /**
+     * A relay the peer answered.
+     *
+     * @param latencyMillis time until the first response frame.
+     * @param hit           whether the peer returned any result.
+     */
+    public synchronized void recordSuccess(long latencyMillis, boolean hit) {
+        latency += ALPHA * (latencyMillis - latency);
+        errorRate += ALPHA * (0 - errorRate);
+        hitRate += ALPHA * ((hit ? 1 : 0) - hitRate);
+        relays++;
+        recordAlive();
+    }
+
+    /**
+     * The peer answered something other than a relay, closes the circuit.
+     */
+    public synchronized void recordAlive() {
+        consecutiveFailures = 0;
+        probeStarted = 0;
+    }
+
+    /**
+     * A relay that failed to connect, timed out or broke off.
+     */
+    public synchronized void recordFailure() {
+        errorRate += ALPHA * (1 - errorRate);
+        relays++;
+        long now = System.currentTimeMillis();
+        if (consecutiveFailures++ == 0) {
+            failingSince = now;
+        }
+        probeStarted = 0;
+        if (consecutiveFailures >= FAILURE_THRESHOLD) {
+            int shift = Math.min(consecutiveFailures - FAILURE_THRESHOLD, 16);
+            retryAt = now + Math.min(BASE_BACKOFF << shift, MAX_BACKOFF);
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return consecutiveFailures >= FAILURE_THRESHOLD;
+    }
+
+    /**
+     * @return whether a request may be sent: the circuit is closed, or it is open and a probe
+     * is due and not already on its way.
+     */
+    public synchronized boolean isAvailable(long now) {
+        if (!isOpen()) {
+            return true;
+        }
+        //a probe that never reported back does not block the peer for ever
+        boolean probing = probeStarted != 0 && now - probeStarted < MAX_BACKOFF;
+        return now >= retryAt && !probing;
+    }
+
+    /**
+     * A request is about to be sent; with the circuit open it is the probe.
+     *
+     * @return false if it may not be sent after all, e.g. another probe got there first.
+     */
+    public synchronized boolean tryBeginRequest(long now) {
+        if (!isAvailable(now)) {
+            return false;
+        }
+        if (isOpen()) {
+            probeStarted = now;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the peer has failed every request for so long that it should be dropped.
+     */
+    public synchronized boolean isGone(long now) {
+        return isOpen() && now - failingSince > EVICT_AFTER;
+    }
+
+    /**
+     * @return weight of the peer when choosing relay targets, higher is better and never 0.
+     */
+    public synchronized double score() {
+        double score = (hitRate + 0.05) * (1 - errorRate) * 1000 / Math.max(latency, LATENCY_FLOOR);
+        return Math.max(score, MIN_SCORE);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("latency %.0fms, errors %.2f, hits %.2f, %d relays, %d failures in a row",
+                latency, errorRate, hitRate, relays, consecutiveFailures);
+    }
+}
@@ -0,0 +1,89 @@
+package EZShare.server;
+
+import EZShare.message.ResourceTemplate;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of relayed queries, kept for a short time so that an ultra node can answer a
+ * repeated query itself instead of flooding its peers again.
+ * Entries expire after a time to live; when the total number of cached results exceeds the
+ * limit, least recently used entries are dropped first.
+ */
+public class QueryCache {
+
+    private static class Entry {
+        private final List<ResourceTemplate> results;
+        private final long expires;
+
+        private Entry(List<ResourceTemplate> results, long expires) {
+            this.results = Collections.unmodifiableList(results);
+            this.expires = expires;
+        }
+    }
+
+    private final int maxResults;
+    private final long ttl;
+    private int cachedResults = 0;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxResults maximum number of results held over all entries.
+     * @param ttl        milliseconds an entry is served.
+     */
+    public QueryCache(int maxResults, long ttl) {
+        this.maxResults = maxResults;
+        this.ttl = ttl;
+    }
+
+    /**
+     * @param template the relayed template, see ResourceTemplate.queryKey().
+     * @param mxHops   hops the query would still be relayed.
+     * @return cached results, or null if there are none or they expired.
+     */
+    public synchronized List<ResourceTemplate> get(ResourceTemplate template, int mxHops) {
+        String key = key(template, mxHops);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires <= System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+        return entry.results;
+    }
+
+    /**
+     * Cache the results of a relayed query, replacing older results for the same query.
+     */
+    public synchronized void put(ResourceTemplate template, int mxHops, List<ResourceTemplate> results) {
+        if (results.size() > maxResults) {
+            return;
+        }
+        String key = key(template, mxHops);
+        remove(key);
+        entries.put(key, new Entry(results, System.currentTimeMillis() + ttl));
+        cachedResults += results.size();
+        Iterator<Entry> it = entries.values().iterator();
+        while (cachedResults > maxResults && it.hasNext()) {
+            cachedResults -= it.next().results.size();
+            it.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            cachedResults -= old.results.size();
+        }
+    }
+
+    private static String key(ResourceTemplate template, int mxHops) {
+        return mxHops + "\n" + template.queryKey();
+    }
+}
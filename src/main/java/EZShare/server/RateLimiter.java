@@ -0,0 +1,165 @@
+package EZShare.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Token-bucket limiter keyed by client address and command class.
+ * A bucket refills continuously at the sustained rate up to its burst size. Buckets that
+ * have been idle long enough to refill completely carry no information, so they are
+ * dropped by a timing wheel and the map only holds recently active clients.
+ */
+public class RateLimiter {
+
+    /** Command class applied to every accepted connection. */
+    public static final String CONNECTION = "CONNECTION";
+    /**
+     * Command class applied instead to connections from servers in the list, which open
+     * several at once for pooled relays, gossip and parallel chunk downloads. Not limited
+     * unless given a rate.
+     */
+    public static final String PEER_CONNECTION = "PEER_CONNECTION";
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SLOTS = 64;
+
+    /**
+     * Sustained rate and burst size of one command class.
+     */
+    public static class Rate {
+        private final double permitsPerMilli;
+        private final int burst;
+
+        public Rate(double permitsPerSecond, int burst) {
+            this.permitsPerMilli = permitsPerSecond / 1000;
+            this.burst = Math.max(1, burst);
+        }
+
+        /**
+         * @return milliseconds an empty bucket needs to become full again.
+         */
+        private long refillMillis() {
+            return (long) Math.ceil(burst / permitsPerMilli);
+        }
+    }
+
+    private static class Bucket {
+        private final Rate rate;
+        private double tokens;
+        private long lastUpdate;
+
+        private Bucket(Rate rate, long now) {
+            this.rate = rate;
+            this.tokens = rate.burst;
+            this.lastUpdate = now;
+        }
+
+        private synchronized boolean tryTake(long now) {
+            refill(now);
+            lastUpdate = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        private synchronized void refill(long now) {
+            tokens = Math.min(rate.burst, tokens + (now - lastUpdate) * rate.permitsPerMilli);
+        }
+
+        private synchronized long fullAt() {
+            return lastUpdate + (long) Math.ceil((rate.burst - tokens) / rate.permitsPerMilli);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Map<String, Rate> rates;
+    private final TimingWheel<String> wheel;
+
+    /**
+     * @param rates rate of each command class. Classes without a rate are not limited.
+     */
+    public RateLimiter(Map<String, Rate> rates) {
+        this.rates = new ConcurrentHashMap<>(rates);
+        this.wheel = new TimingWheel<>("rate-limit-expiry", TICK_MILLIS, WHEEL_SLOTS, this::expire);
+    }
+
+    /**
+     * Take one token from the bucket of the client for the given command class.
+     *
+     * @param client       client address.
+     * @param commandClass CONNECTION or a command name.
+     * @return whether the request is allowed.
+     */
+    public boolean tryAcquire(String client, String commandClass) {
+        Rate rate = rates.get(commandClass);
+        if (rate == null) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        String key = commandClass + "|" + client;
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            Bucket created = new Bucket(rate, now);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+                wheel.schedule(key, now + rate.refillMillis());
+            }
+        }
+        return bucket.tryTake(now);
+    }
+
+    /**
+     * @return number of clients currently tracked.
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    private long expire(String key, long now) {
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            return -1;
+        }
+        long fullAt = bucket.fullAt();
+        if (fullAt <= now && buckets.remove(key, bucket)) {
+            return -1;
+        }
+        return fullAt;
+    }
+
+    /**
+     * Parse a rate specification such as "QUERY=20:40,FETCH=2:4", i.e. command=perSecond:burst.
+     * The burst may be left out, it is then the rate rounded up.
+     *
+     * @param spec  the specification from the command line.
+     * @param rates map to put parsed rates into.
+     * @throws IllegalArgumentException if an item is malformed, or a rate or burst is not positive.
+     */
+    public static void parseRates(String spec, Map<String, Rate> rates) {
+        for (String item : spec.split(",")) {
+            if (item.trim().isEmpty()) {
+                continue;
+            }
+            String[] kv = item.split("=", -1);
+            String[] rb = kv.length == 2 ? kv[1].split(":", -1) : new String[0];
+            if (kv.length != 2 || kv[0].trim().isEmpty() || rb.length < 1 || rb.length > 2) {
+                throw new IllegalArgumentException("\"" + item + "\" is not command=perSecond[:burst]");
+            }
+            double perSecond;
+            int burst;
+            try {
+                perSecond = Double.parseDouble(rb[0].trim());
+                burst = rb.length > 1 ? Integer.parseInt(rb[1].trim()) : (int) Math.ceil(perSecond);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("\"" + item + "\" has a malformed number");
+            }
+            if (!(perSecond > 0) || Double.isInfinite(perSecond) || burst < 1) {
+                throw new IllegalArgumentException("\"" + item + "\" needs a positive rate and burst");
+            }
+            rates.put(kv[0].trim().toUpperCase(), new Rate(perSecond, burst));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package EZShare.server;
+
+import EZShare.Nodes;
+import EZShare.message.Host;
+import EZShare.message.ResourceTemplate;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * The subscribe relay connection to one peer. It carries all upstream subscriptions of this
+ * node to the peer, each SUBSCRIBE and UNSUBSCRIBE frame naming its subscription id, and
+ * the resources the peer notifies for them. Frames are queued and written by a thread of
+ * the channel, so relaying to many peers does not wait on any one of them, and a broken
+ * peer only closes its own channel. A second thread blocks reading notifications.
+ */
+public class RelayChannel {
+
+    private final Host peer;
+    private final Socket socket;
+    private final DataOutputStream output;
+    private final BlockingQueue<String> frames = new LinkedBlockingQueue<>();
+    private final Consumer<ResourceTemplate> listener;
+    private final Consumer<RelayChannel> onClose;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Gson gson = new Gson();
+    private Thread writer;
+
+    /**
+     * @param peer     the peer.
+     * @param socket   a connected socket to the peer.
+     * @param listener gets every resource the peer notifies.
+     * @param onClose  run once when the channel closes, for whatever reason.
+     */
+    public RelayChannel(Host peer, Socket socket, Consumer<ResourceTemplate> listener, Consumer<RelayChannel> onClose) throws IOException {
+        this.peer = peer;
+        this.socket = socket;
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.listener = listener;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Start writing queued frames and reading notifications.
+     */
+    public void start() {
+        writer = new Thread(this::write, "relay-writer-" + peer);
+        writer.setDaemon(true);
+        writer.start();
+        Thread reader = new Thread(this::read, "relay-reader-" + peer);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Queue a frame to the peer, never blocks.
+     *
+     * @return false if the channel is closed.
+     */
+    public boolean send(String json) {
+        if (closed.get()) {
+            return false;
+        }
+        frames.offer(json);
+        return true;
+    }
+
+    /**
+     * Close the connection; the peer drops the subscriptions made over it.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (writer != null) {
+            writer.interrupt();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Nodes.logger.log(Level.FINE, "IOException when closing relay connection to {0}", peer);
+        }
+        onClose.accept(this);
+    }
+
+    public Host getPeer() {
+        return peer;
+    }
+
+    private void write() {
+        try {
+            while (!closed.get()) {
+                output.writeUTF(frames.take());
+                //flush once the queue is drained, a burst goes out in as few packets as possible
+                if (frames.isEmpty()) {
+                    output.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            //closed
+        } catch (IOException e) {
+            Nodes.logger.log(Level.WARNING, "{0} : IOException when relaying subscriptions", peer);
+        }
+        close();
+    }
+
+    private void read() {
+        try {
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            socket.setSoTimeout(0);
+            while (true) {
+                String resource = input.readUTF();
+                if (!resource.contains("resultSize") && !resource.contains("error") && !resource.contains("success")) {
+                    listener.accept(gson.fromJson(resource, ResourceTemplate.class));
+                }
+            }
+        } catch (IOException e) {
+            Nodes.logger.log(Level.FINE, "relay connection to {0} closed", peer);
+        } catch (JsonSyntaxException e) {
+            Nodes.logger.log(Level.WARNING, "{0} : malformed relayed resource", peer);
+        }
+        close();
+    }
+}
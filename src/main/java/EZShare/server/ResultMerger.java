@@ -0,0 +1,77 @@
+package EZShare.server;
+
+import EZShare.Nodes;
+import EZShare.message.ResourceTemplate;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Merges query results arriving from several relays into one response stream.
+ * Each resource is identified by (channel, uri, ezserver); the first copy is written to the
+ * client right away and later copies arriving by other paths are dropped.
+ */
+public class ResultMerger {
+
+    private final DataOutputStream output;
+    private final Set<String> seen = new HashSet<>();
+    private final List<ResourceTemplate> results = new ArrayList<>();
+    private boolean closed = false;
+    private boolean broken = false;
+
+    /**
+     * @param output stream to the client, the success message must already be sent.
+     */
+    public ResultMerger(DataOutputStream output) {
+        this.output = output;
+    }
+
+    /**
+     * Forward a result unless it is a duplicate or the merge is closed.
+     *
+     * @param resource a result from any relay.
+     * @return whether the result was new.
+     */
+    public synchronized boolean offer(ResourceTemplate resource) {
+        if (closed || !seen.add(resource.getChannel() + "\n" + resource.getUri() + "\n" + resource.getEzserver())) {
+            return false;
+        }
+        if (!resource.getOwner().equals("")) {
+            resource.setOwner("*");
+        }
+        results.add(resource);
+        if (!broken) {
+            try {
+                output.writeUTF(resource.toString());
+                output.flush();
+            } catch (IOException e) {
+                //client gone, keep counting so relays can finish quietly
+                broken = true;
+                Nodes.logger.log(Level.WARNING, "IOException when streaming query result: {0}", e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop forwarding, results arriving after this are dropped.
+     *
+     * @return number of distinct results forwarded.
+     */
+    public synchronized long close() {
+        closed = true;
+        return results.size();
+    }
+
+    /**
+     * @return the distinct results forwarded so far, owners already hidden.
+     */
+    public synchronized List<ResourceTemplate> getResults() {
+        return new ArrayList<>(results);
+    }
+}
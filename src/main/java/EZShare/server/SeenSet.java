@@ -0,0 +1,53 @@
+package EZShare.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded set of recently seen ids. Ids are forgotten after a time to live, or earlier
+ * when the set is full, oldest first.
+ */
+public class SeenSet {
+
+    private final int capacity;
+    private final long ttl;
+    private final LinkedHashMap<String, Long> seen = new LinkedHashMap<>();
+
+    /**
+     * @param capacity maximum number of ids remembered.
+     * @param ttl      milliseconds an id is remembered.
+     */
+    public SeenSet(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Record an id.
+     *
+     * @param id the id.
+     * @return true if the id is new, false if it was seen within the time to live.
+     */
+    public synchronized boolean add(String id) {
+        long now = System.currentTimeMillis();
+        //entries are in insertion order, so expired ones are at the head
+        Iterator<Map.Entry<String, Long>> it = seen.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (seen.size() <= capacity && now - eldest.getValue() < ttl) {
+                break;
+            }
+            it.remove();
+        }
+        if (seen.containsKey(id)) {
+            return false;
+        }
+        seen.put(id, now);
+        return true;
+    }
+
+    public synchronized int size() {
+        return seen.size();
+    }
+}
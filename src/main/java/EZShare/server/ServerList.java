@@ -2,7 +2,9 @@ package EZShare.server;
 
 import EZShare.Nodes;
 import EZShare.message.*;
+import EZShare.util.PeerConnectionPool;
 import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -15,6 +17,13 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 
 /**
@@ -23,10 +32,74 @@ import java.util.logging.Level;
 public class ServerList {
     private Gson gson = new Gson();
 
-    public static final int SERVER_TIMEOUT = (int) Nodes.EXCHANGE_PERIOD / 2;
+    private static final double EXPLORATION = 0.1;//chance a relay target is picked uniformly, ignoring its score
+    private static final long SUMMARY_PUSH_DELAY = 1000;//changes within this time are sent to peers together
+    private static final long SUMMARY_TTL = 300000;//a peer summary older than this is no longer trusted
+    private static final int SUMMARY_TIMEOUT = 3000;
+    private static final int RELAY_CONNECT_TIMEOUT = 3000;
+    private static final int GOSSIP_FANOUT = 2;//peers gossiped with per exchange period
+    private static final int TOMBSTONE_ROUNDS = 10;//gossip rounds a removed server is remembered
 
     private List<Host> serverList = new ArrayList<>();
+    /* Addresses of the servers in the list, resolved when they are added */
+    private final ConcurrentHashMap<Host, InetAddress[]> serverAddresses = new ConcurrentHashMap<>();
+
+    /* Idle connections to peers, reused by relayed requests */
+    private final PeerConnectionPool connectionPool = new PeerConnectionPool(2, Nodes.KEEP_ALIVE_TIMEOUT * 2 / 3);
+
+    /* How each peer has answered relays so far */
+    private final ConcurrentHashMap<Host, PeerStats> peerStats = new ConcurrentHashMap<>();
+
+    /* What peers may hold, and the peers that asked for updates of what this node holds */
+    private ContentSummary localSummary;
+    private final ConcurrentHashMap<Host, ContentSummary> peerSummaries = new ConcurrentHashMap<>();
+    private final Set<Host> summarySubscribers = ConcurrentHashMap.newKeySet();
+    private final Set<Host> summaryRequests = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean summaryPushPending = new AtomicBoolean();
+    private final ScheduledExecutorService summaryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "server-exchange");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /* Gets resources arriving on subscribe relay connections */
+    private Consumer<ResourceTemplate> relayListener;
+    /* Subscriptions held at peers for local relay subscribers, one per distinct template */
+    private final UpstreamSubscriptions upstreamSubscriptions = new UpstreamSubscriptions();
+    /* Relay channels are connected in the background, a slow or dead peer holds up nobody */
+    private final Set<Host> relaysOpening = ConcurrentHashMap.newKeySet();
+    private final ExecutorService relayOpener = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "relay-opener");
+        t.setDaemon(true);
+        return t;
+    });
+
+
+    /**
+     * Last change of a server in the list: added, or removed and kept as a tombstone so that
+     * gossip about it from others does not bring it back. Tombstones are dropped after
+     * TOMBSTONE_ROUNDS gossip rounds, by then the removal has reached the peers.
+     */
+    private static class Membership {
+        private final long version;
+        private final boolean removed;
+        private final long round;
+
+        private Membership(long version, boolean removed, long round) {
+            this.version = version;
+            this.removed = removed;
+            this.round = round;
+        }
+    }
 
+    /* Versioned changes of the server list, for gossiping deltas. Versions start at the
+       clock so that they keep growing across restarts */
+    private final Map<Host, Membership> membership = new LinkedHashMap<>();
+    private long version = System.currentTimeMillis();
+    private long gossipRounds = 0;
+    /* Per peer: version of its list merged here, and version of this list it has received */
+    private final ConcurrentHashMap<Host, Long> peerVersions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Host, Long> ackedVersions = new ConcurrentHashMap<>();
 
     public ServerList() {
 
@@ -36,6 +109,10 @@ public class ServerList {
         return serverList;
     }
 
+    public PeerConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
     public synchronized int updateServerList(List<Host> inputServerList) {
 
         int addCount = 0;
@@ -46,24 +123,369 @@ public class ServerList {
             if (!containsHost(inputHost) &&
                     !(isMyIpAddress(inputHost.getHostname()) && (inputHost.getPort() == Nodes.PORT ))) {
 
-                openSubscribeRelay(inputHost);
+                requestSummary(inputHost);
 //                Nodes.logger.info("inputHost:"+inputHost);
                 serverList.add(inputHost);
+                openSubscribeRelay(inputHost);
+                try {
+                    serverAddresses.put(inputHost, InetAddress.getAllByName(inputHost.getHostname()));
+                } catch (UnknownHostException e) {
+                    Nodes.logger.log(Level.FINE, "cannot resolve {0}", inputHost);
+                }
+                membership.put(inputHost, new Membership(++version, false, gossipRounds));
 //                Nodes.logger.info("ENDinputHost:"+inputHost);
                 ++addCount;
             }
         }
         return addCount;
     }
-/*no regular exchange*/
 
     public synchronized void removeServer(Host inputHost) {
 
 //        closeSubscribeRelay(inputHost);
-        serverList.remove(inputHost);
+        if (!serverList.remove(inputHost)) {
+            return;
+        }
+        membership.put(inputHost, new Membership(++version, true, gossipRounds));
+        serverAddresses.remove(inputHost);
+        peerVersions.remove(inputHost);
+        ackedVersions.remove(inputHost);
+        connectionPool.closeAll(inputHost);
+        RelayChannel channel = Nodes.unsecure_relay.remove(inputHost);
+        if (channel != null) {
+            channel.close();
+        }
+        peerStats.remove(inputHost);
+        peerSummaries.remove(inputHost);
+        summarySubscribers.remove(inputHost);
         System.out.println(inputHost+"removed from server list");
     }
 
+    /**
+     * Choose peers to relay a request to. Only peers whose summary may hold all the keys are
+     * considered; if there are none, the request may still be found further away, so any
+     * peer is. Peers whose circuit is open are skipped until a probe is due. Peers are drawn
+     * without replacement, weighted by how fast and how often they answered with results
+     * before; now and then a peer is drawn uniformly instead so that peers with a poor record
+     * still get a chance to improve it. A selected peer is only taken as probed once a
+     * request is sent to it, see beginRelay.
+     *
+     * @param count maximum number of peers.
+     * @param keys  ContentSummary keys a matching peer must hold, may be empty.
+     * @return at most count distinct peers, all candidates when there are not more.
+     */
+    public synchronized List<Host> selectRelayTargets(int count, List<String> keys) {
+        long now = System.currentTimeMillis();
+        List<Host> available = new ArrayList<>();
+        for (Host h : serverList) {
+            if (getPeerStats(h).isAvailable(now)) {
+                available.add(h);
+            }
+        }
+        List<Host> candidates = new ArrayList<>();
+        for (Host h : available) {
+            if (mayHold(h, keys)) {
+                candidates.add(h);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates.addAll(available);
+        }
+        if (candidates.size() <= count) {
+            return candidates;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double[] weights = new double[candidates.size()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = getPeerStats(candidates.get(i)).score();
+        }
+        List<Host> selected = new ArrayList<>(count);
+        int remaining = candidates.size();
+        while (selected.size() < count) {
+            int pick;
+            if (random.nextDouble() < EXPLORATION) {
+                pick = random.nextInt(remaining);
+            } else {
+                double total = 0;
+                for (int i = 0; i < remaining; i++) {
+                    total += weights[i];
+                }
+                double r = random.nextDouble() * total;
+                pick = 0;
+                while (pick < remaining - 1 && (r -= weights[pick]) >= 0) {
+                    pick++;
+                }
+            }
+            selected.add(candidates.get(pick));
+            //move the last remaining candidate into the picked slot
+            remaining--;
+            candidates.set(pick, candidates.get(remaining));
+            weights[pick] = weights[remaining];
+        }
+        return selected;
+    }
+
+    /**
+     * Record a relay the peer answered.
+     *
+     * @param latency milliseconds until its first response frame.
+     * @param hit     whether it returned any result.
+     */
+    public void recordRelaySuccess(Host host, long latency, boolean hit) {
+        getPeerStats(host).recordSuccess(latency, hit);
+    }
+
+    /**
+     * Call right before sending a relay to a peer chosen by selectRelayTargets. With the
+     * peer's circuit open the relay is its probe, and further ones wait for its outcome.
+     *
+     * @return false if the relay is not to be sent, another probe is on its way already.
+     */
+    public boolean beginRelay(Host host) {
+        return getPeerStats(host).tryBeginRequest(System.currentTimeMillis());
+    }
+
+    /**
+     * Record a relay to the peer that failed.
+     */
+    public void recordRelayFailure(Host host) {
+        PeerStats stats = getPeerStats(host);
+        stats.recordFailure();
+        if (stats.isGone(System.currentTimeMillis())) {
+            Nodes.logger.log(Level.INFO, "{0} down for too long, removed: {1}", new Object[]{host, stats});
+            removeServer(host);
+        } else if (stats.isOpen()) {
+            Nodes.logger.log(Level.FINE, "circuit open for {0}: {1}", new Object[]{host, stats});
+        }
+    }
+
+    /**
+     * @return false only if the peer's summary says it surely lacks one of the keys.
+     */
+    public boolean mayHold(Host host, List<String> keys) {
+        ContentSummary summary = peerSummaries.get(host);
+        if (summary == null) {
+            return true;
+        }
+        if (summary.getAge() > SUMMARY_TTL) {
+            //the peer may have restarted and forgotten to update us, ask again
+            peerSummaries.remove(host, summary);
+            requestSummary(host);
+            return true;
+        }
+        return summary.mightContainAll(keys);
+    }
+
+    public void setLocalSummary(ContentSummary localSummary) {
+        this.localSummary = localSummary;
+    }
+
+    /**
+     * Store a summary sent by a peer.
+     *
+     * @param subscribe whether the peer wants to receive updates of this node's summary.
+     */
+    public void receiveSummary(Host origin, String wire, boolean subscribe) {
+        ContentSummary summary = ContentSummary.fromWire(wire);
+        if (summary == null) {
+            Nodes.logger.log(Level.WARNING, "{0} sent a malformed summary", origin);
+            return;
+        }
+        peerSummaries.put(origin, summary);
+        if (subscribe) {
+            summarySubscribers.add(origin);
+        }
+    }
+
+    /**
+     * @return this node's summary as sent to peers, null when not serving.
+     */
+    public String getLocalSummaryWire() {
+        return localSummary == null ? null : localSummary.toWire();
+    }
+
+    /**
+     * Send this node's summary to subscribed peers shortly, together with any further changes
+     * made meanwhile.
+     */
+    public void localSummaryChanged() {
+        if (summaryPushPending.compareAndSet(false, true)) {
+            summaryExecutor.schedule(this::pushSummary, SUMMARY_PUSH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void pushSummary() {
+        summaryPushPending.set(false);
+        String wire = getLocalSummaryWire();
+        for (Host h : summarySubscribers) {
+            if (sendExchange(h, new ExchangeMessage(new ArrayList<>(), self(), wire, false)) == null) {
+                //gone, it subscribes again when it adds this node back
+                summarySubscribers.remove(h);
+            }
+        }
+    }
+
+    /**
+     * Send this node's summary to a peer in the background, asking for the peer's summary
+     * and its updates in return.
+     */
+    private void requestSummary(Host host) {
+        if (localSummary == null || !summaryRequests.add(host)) {
+            return;
+        }
+        summaryExecutor.execute(() -> {
+            try {
+                String response = sendExchange(host, new ExchangeMessage(new ArrayList<>(), self(), getLocalSummaryWire(), true));
+                if (response == null) {
+                    return;
+                }
+                Map<?, ?> answer = gson.fromJson(response, Map.class);
+                if (answer.get("summary") instanceof String) {
+                    receiveSummary(host, (String) answer.get("summary"), false);
+                    Nodes.logger.log(Level.FINE, "summary of {0} received", host);
+                }
+            } finally {
+                summaryRequests.remove(host);
+            }
+        });
+    }
+
+    /**
+     * @return the peer's response, or null if it could not be reached.
+     */
+    private String sendExchange(Host host, ExchangeMessage exchangeMessage) {
+        exchangeMessage.setKeepAlive(true);
+        String JSON = gson.toJson(exchangeMessage);
+        try {
+            return connectionPool.execute(host, SUMMARY_TIMEOUT, connection -> {
+                connection.getSocket().setSoTimeout(SUMMARY_TIMEOUT);
+                connection.getOutput().writeUTF(JSON);
+                connection.getOutput().flush();
+                return connection.getInput().readUTF();
+            });
+        } catch (IOException e) {
+            Nodes.logger.log(Level.WARNING, "IOException when sending exchange to {0}", host);
+            return null;
+        }
+    }
+
+    /**
+     * Gossip with a few random peers every exchange period. A round that fails is logged and
+     * the next one runs as usual; an exception escaping the task would cancel it for good.
+     */
+    public void startGossip() {
+        summaryExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                gossip();
+            } catch (RuntimeException e) {
+                Nodes.logger.log(Level.WARNING, "gossip round failed", e);
+            }
+        }, Nodes.EXCHANGE_PERIOD, Nodes.EXCHANGE_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * One gossip round: send each chosen peer what changed here since it last heard, take
+     * what changed there in return.
+     */
+    private void gossip() {
+        List<Host> targets;
+        synchronized (this) {
+            gossipRounds++;
+            membership.values().removeIf(m -> m.removed && gossipRounds - m.round > TOMBSTONE_ROUNDS);
+            targets = new ArrayList<>(serverList);
+        }
+        Collections.shuffle(targets);
+        for (Host h : targets.subList(0, Math.min(GOSSIP_FANOUT, targets.size()))) {
+            ExchangeMessage delta;
+            long sent;
+            synchronized (this) {
+                sent = version;
+                delta = getDelta(ackedVersions.getOrDefault(h, 0L), peerVersions.getOrDefault(h, 0L));
+            }
+            String response = sendExchange(h, delta);
+            if (response == null) {
+                //counts against the peer like a failed relay, it is dropped once it stays down
+                Nodes.logger.log(Level.INFO, "{0} unreachable when gossiping", h);
+                recordRelayFailure(h);
+                continue;
+            }
+            getPeerStats(h).recordAlive();
+            if (!response.contains("success")) {
+                Nodes.logger.log(Level.WARNING, "{0} refused gossip: {1}", new Object[]{h, response});
+                continue;
+            }
+            ExchangeMessage reply = gson.fromJson(response, ExchangeMessage.class);
+            ackedVersions.put(h, sent);
+            mergeGossip(h, reply.getServerList(), reply.getRemoved(), reply.getVersion());
+            if (reply.getSummary() != null) {
+                receiveSummary(h, reply.getSummary(), false);
+            }
+        }
+    }
+
+    /**
+     * Changes of this list after a version, as a gossip message.
+     *
+     * @param since     version of this list the peer already knows.
+     * @param peerSince version of the peer's list known here.
+     */
+    public synchronized ExchangeMessage getDelta(long since, long peerSince) {
+        List<Host> added = new ArrayList<>();
+        List<Host> removed = new ArrayList<>();
+        for (Map.Entry<Host, Membership> entry : membership.entrySet()) {
+            if (entry.getValue().version > since) {
+                (entry.getValue().removed ? removed : added).add(entry.getKey());
+            }
+        }
+        return new ExchangeMessage(added, removed, self(), getLocalSummaryWire(), version, peerSince);
+    }
+
+    /**
+     * Apply a peer's changes. The peer itself is alive and is added back even if removed
+     * before; servers it merely heard of are not added back once removed here.
+     *
+     * @param origin      the peer.
+     * @param peerVersion version of the peer's list the changes bring this node to.
+     */
+    public synchronized void mergeGossip(Host origin, List<Host> added, List<Host> removed, long peerVersion) {
+        List<Host> toAdd = new ArrayList<>();
+        toAdd.add(origin);
+        if (added != null) {
+            for (Host h : added) {
+                Membership m = membership.get(h);
+                if (m == null || !m.removed) {
+                    toAdd.add(h);
+                }
+            }
+        }
+        updateServerList(toAdd);
+        for (Host h : removed) {
+            if (!h.equals(origin)) {
+                removeServer(h);
+            }
+        }
+        peerVersions.put(origin, peerVersion);
+    }
+
+    /**
+     * Answer a gossip message: merge its changes and return this node's changes the sender
+     * has not seen yet, with its summary.
+     */
+    public synchronized ExchangeMessage answerGossip(ExchangeMessage gossip) {
+        mergeGossip(gossip.getOrigin(), gossip.getServerList(), gossip.getRemoved(), gossip.getVersion());
+        ExchangeMessage delta = getDelta(gossip.getSince(), gossip.getVersion());
+        ackedVersions.put(gossip.getOrigin(), version);
+        return delta;
+    }
+
+    private static Host self() {
+        return new Host(Nodes.HOST, Nodes.PORT);
+    }
+
+    private PeerStats getPeerStats(Host host) {
+        return peerStats.computeIfAbsent(host, h -> new PeerStats());
+    }
+
     private synchronized boolean containsHost(Host inputHost) {
 
         for (Host host : serverList) {
@@ -74,6 +496,41 @@ public class ServerList {
         return false;
     }
 
+    /**
+     * @param remote address a connection arrived from.
+     * @return whether a server in the list has that address.
+     */
+    public boolean isServerAddress(InetAddress remote) {
+        for (InetAddress[] addresses : serverAddresses.values()) {
+            for (InetAddress addr : addresses) {
+                if (addr.equals(remote)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a connection from the remote address can come from the server. A server on this
+     * machine may connect over loopback whatever address it advertises.
+     *
+     * @param host   the server a message claims to come from.
+     * @param remote address the message arrived from.
+     */
+    public boolean isAddressOf(Host host, InetAddress remote) {
+        try {
+            for (InetAddress addr : InetAddress.getAllByName(host.getHostname())) {
+                if (addr.equals(remote)) {
+                    return true;
+                }
+            }
+        } catch (UnknownHostException ex) {
+            return false;
+        }
+        return remote.isLoopbackAddress() && isMyIpAddress(host.getHostname());
+    }
+
     private boolean isMyIpAddress(String ipAddress) {
         InetAddress addr;
         try {
@@ -96,126 +553,156 @@ public class ServerList {
     }
 
 
+    /**
+     * Open the relay channel to a peer in the background, unless it has one or one is being
+     * opened, and subscribe over it to everything local relay subscribers are waiting for.
+     * A peer whose circuit is open is skipped until a probe is due; connecting is the probe,
+     * and failing to connect counts against the peer like a failed relay.
+     */
     public void openSubscribeRelay(Host target) {
-        ConcurrentHashMap<Host, Socket> relay;
+        if (Nodes.unsecure_relay.containsKey(target) || !relaysOpening.add(target)) {
+            return;
+        }
+        if (!beginRelay(target)) {
+            relaysOpening.remove(target);
+            return;
+        }
+        relayOpener.execute(() -> {
+            try {
+                connectSubscribeRelay(target);
+            } finally {
+                relaysOpening.remove(target);
+            }
+        });
+    }
+
+    private void connectSubscribeRelay(Host target) {
+        Socket socket = new Socket();
         try {
-            Socket socket = new Socket();
-            relay = Nodes.unsecure_relay;
             /* Set timeout for connection establishment, throwing ConnectException */
-            socket.connect(new InetSocketAddress(target.getHostname(), target.getPort()), SERVER_TIMEOUT);
-
-            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-            //DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-
-            //traverse all subscribers
-            for (Map.Entry<Socket, Subscription> subscriber : Nodes.subscriptions.entrySet()) {
-                //get all subscribe message of this subscriber
-                ConcurrentHashMap<SubscribeMessage, Integer> messages = subscriber.getValue().getSubscribeMessage();
-                for (Map.Entry<SubscribeMessage, Integer> subscription : messages.entrySet()) {
-                    //if this message have relay=true
-                    int mxHops = subscription.getKey().getMxHops();
-                    if (mxHops == 1){
-                        subscription.getKey().setRelay(false);
-                    }
-                    if (subscription.getKey().isRelay()) {
-                        SubscribeMessage forwarded = new SubscribeMessage(subscription.getKey().isRelay(), subscription.getKey().getId(),
-                                subscription.getKey().getResourceTemplate(),(mxHops-1));
-
-                        String JSON = gson.toJson(forwarded, SubscribeMessage.class);
-                        outputStream.writeUTF(JSON);
-                        outputStream.flush();
-                    }
-                }
-            }
-            relay.put(target, socket);
-            Nodes.logger.info("relay connection opened " + target.toString());
+            socket.connect(new InetSocketAddress(target.getHostname(), target.getPort()), RELAY_CONNECT_TIMEOUT);
         } catch (IOException e) {
-            Nodes.logger.warning("IOException when subscribe relay to " + target.toString());
+            Nodes.logger.log(Level.WARNING, "IOException when subscribe relay to {0}", target);
+            closeQuietly(socket, target);
+            recordRelayFailure(target);
+            return;
         }
-
-
+        getPeerStats(target).recordAlive();
+        startSubscribeRelay(target, socket);
     }
 
-    public synchronized void closeSubscribeRelay(Host target) {
-        Socket socket = null;
-        ConcurrentHashMap<Host, Socket> relay;
+    /**
+     * Put a connected relay channel in place. Synchronized with subscribeUpstream, so the peer
+     * gets every upstream subscription exactly once, those held now over the channel at once.
+     */
+    private synchronized void startSubscribeRelay(Host target, Socket socket) {
+        if (!containsHost(target)) {
+            //removed while connecting
+            closeQuietly(socket, target);
+            return;
+        }
+        RelayChannel channel;
         try {
-            socket = new Socket();
-            relay = Nodes.unsecure_relay;
-            Nodes.logger.log(Level.FINE, "relay getting:{0}",relay.toString());
-            System.out.println("values");
-            System.out.println(relay.values());
-            System.out.println("keys");
-            System.out.println(relay.keySet());
-            System.out.println("target");
-            System.out.println(target);
-            System.out.println(relay.keySet().contains(target));
-            socket = relay.get(target);
-            Nodes.logger.log(Level.FINE, "socket getting:{0}", socket.getRemoteSocketAddress().toString());
-            socket.connect(new InetSocketAddress(target.getHostname(), target.getPort()));
-            Nodes.logger.log(Level.FINE, "fetching to {0}", socket.getRemoteSocketAddress().toString());
-            socket.setSoTimeout(3000);
-//            Nodes.logger.log(Level.FINE, "socket connecting:{0}",target);
-//            socket.connect(new InetSocketAddress(target.getHostname(), target.getPort()),SERVER_TIMEOUT);
-
-            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-            //traverse all subscribers
-            for (Map.Entry<Socket, Subscription> subscriber : Nodes.subscriptions.entrySet()) {
-                //get all subscribe message of this subscriber
-                ConcurrentHashMap<SubscribeMessage, Integer> messages = subscriber.getValue().getSubscribeMessage();
-                for (Map.Entry<SubscribeMessage, Integer> subscription : messages.entrySet()) {
-                    //if this message have relay=true
-                    if (subscription.getKey().isRelay()) {
-                        String JSON = gson.toJson(new UnsubscribeMessage(subscription.getKey().getId()), UnsubscribeMessage.class);
-                        outputStream.writeUTF(JSON);
-                        outputStream.flush();
-                    }
+            //once closed, the channel leaves the map unless a newer one has replaced it already
+            channel = new RelayChannel(target, socket, resource -> {
+                if (relayListener != null) {
+                    relayListener.accept(resource);
                 }
-            }
-//            relay.remove(target);
+            }, closed -> Nodes.unsecure_relay.remove(closed.getPeer(), closed));
         } catch (IOException e) {
-            Nodes.logger.warning("IOException when subscribe relay to " + target.toString());
+            Nodes.logger.log(Level.WARNING, "IOException when subscribe relay to {0}", target);
+            closeQuietly(socket, target);
+            return;
+        }
+        for (SubscribeMessage forwarded : upstreamSubscriptions.getAll()) {
+            channel.send(gson.toJson(forwarded, SubscribeMessage.class));
+        }
+        RelayChannel previous = Nodes.unsecure_relay.put(target, channel);
+        if (previous != null) {
+            //the peer drops the subscriptions made over it, so nothing arrives twice
+            previous.close();
         }
+        channel.start();
+        Nodes.logger.info("relay connection opened " + target.toString());
     }
 
-    public synchronized void doMessageRelay(String JSON) {
+    private static void closeQuietly(Socket socket, Host target) {
+        try {
+            socket.close();
+        } catch (IOException ce) {
+            Nodes.logger.log(Level.FINE, "IOException when closing relay connection to {0}", target);
+        }
+    }
 
-        ConcurrentHashMap<Host, Socket> relay;
+    /**
+     * @param relayListener gets every resource a peer notifies over a subscribe relay connection.
+     */
+    public void setRelayListener(Consumer<ResourceTemplate> relayListener) {
+        this.relayListener = relayListener;
+    }
 
-        relay = Nodes.unsecure_relay;
+    /**
+     * Withdraw all upstream subscriptions from a peer, keeping its relay channel.
+     */
+    public synchronized void closeSubscribeRelay(Host target) {
+        RelayChannel channel = Nodes.unsecure_relay.get(target);
+        if (channel == null) {
+            return;
+        }
+        for (SubscribeMessage forwarded : upstreamSubscriptions.getAll()) {
+            channel.send(gson.toJson(new UnsubscribeMessage(forwarded.getId()), UnsubscribeMessage.class));
+        }
+    }
 
-        try {
-            for (Map.Entry<Host, Socket> entry : relay.entrySet()) {
-                DataOutputStream outputStream = new DataOutputStream(entry.getValue().getOutputStream());
+    /**
+     * Relay a local subscription to the peers, unless it is not to be relayed or one with the
+     * same template and hops is relayed already. Synchronized with opening relay connections, so a new peer gets it exactly once.
+     * Peers whose relay channel has closed get a new one in the background, subscribing them
+     * to everything held.
+     *
+     * @param local subscribe message of a local relay subscriber.
+     */
+    public synchronized void subscribeUpstream(SubscribeMessage local) {
+        SubscribeMessage forwarded = upstreamSubscriptions.acquire(local);
+        if (forwarded != null) {
+            doMessageRelay(gson.toJson(forwarded));
+        }
+        if (!upstreamSubscriptions.isEmpty()) {
+            openMissingRelays();
+        }
+    }
 
-                entry.getValue().setSoTimeout(3000);
+    /**
+     * Withdraw a local subscription from the peers once no other local subscriber shares it.
+     *
+     * @param local the subscribe message given to subscribeUpstream.
+     */
+    public synchronized void unsubscribeUpstream(SubscribeMessage local) {
+        UnsubscribeMessage unsubscribe = upstreamSubscriptions.release(local);
+        if (unsubscribe != null) {
+            doMessageRelay(gson.toJson(unsubscribe));
+        }
+    }
 
-                outputStream.writeUTF(JSON);
-                outputStream.flush();
+    /**
+     * Queue a frame to every peer's relay channel. Each channel writes on its own, so a slow
+     * or broken peer holds up nobody else.
+     */
+    public void doMessageRelay(String JSON) {
+        for (RelayChannel channel : Nodes.unsecure_relay.values()) {
+            if (channel.send(JSON)) {
                 Nodes.logger.fine("message relayed");
-
             }
-
-        } catch (IOException e) {
-            Nodes.logger.warning("IOException when subscribe relay: " + e.getMessage());
-            e.printStackTrace();
-            System.out.println("JSON : " + JSON);
         }
-
     }
 
-    public synchronized void refreshAllRelay() {
-        ConcurrentHashMap<Host, Socket> relay;
-
-        relay = Nodes.unsecure_relay;
-        relay = new ConcurrentHashMap<>();
-
+    /**
+     * Open relay channels, in the background, to the peers that have none.
+     */
+    private synchronized void openMissingRelays() {
         for (Host h : this.serverList) {
             openSubscribeRelay(h);
         }
-        //point??@larry
-
     }
 
 
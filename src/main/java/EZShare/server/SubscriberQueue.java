@@ -0,0 +1,325 @@
+package EZShare.server;
+
+import EZShare.Nodes;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Outbound frames of one subscriber connection, written by a thread of its own so that a
+ * slow subscriber only holds up itself. Notifications are bounded; what happens when the
+ * subscriber falls that far behind depends on the policy. Control frames (responses to the
+ * subscriber's own requests) are never dropped.
+ * A subscriber that asked for batches gets the notifications of a burst together, as
+ * {"resources":[...]} frames, at the cost of a few milliseconds of latency.
+ * A notification counts as sent once it is written; one dropped or replaced in the queue
+ * never reaches the subscriber and is not counted.
+ */
+public class SubscriberQueue {
+
+    public enum Policy {
+        /* drop the oldest queued notification */
+        DROP_OLDEST,
+        /* replace a queued notification of the same (channel, uri), else drop the oldest */
+        COALESCE,
+        /* close the connection */
+        DISCONNECT
+    }
+
+    private static class Frame {
+        private final String key;//null for control frames
+        private String json;
+        private Runnable written;//run once the notification is written
+        private final Supplier<String> deferred;//control frame built when its turn comes
+
+        private Frame(String key, String json, Runnable written, Supplier<String> deferred) {
+            this.key = key;
+            this.json = json;
+            this.written = written;
+            this.deferred = deferred;
+        }
+    }
+
+    private static final long FINISH_TIMEOUT = 5000;
+    private static final long BATCH_WINDOW = 5;//ms a batch waits for more notifications
+    private static final int BATCH_MAX_ITEMS = 256;
+    private static final int MAX_FRAME = 65535;//bytes writeUTF can encode
+    private static final String BATCH_HEAD = "{\"resources\":[";
+    private static final String BATCH_TAIL = "]}";
+
+    private final Socket socket;
+    private final DataOutputStream output;//buffered, flushed when the queue is drained
+    private final int capacity;
+    private final Policy policy;
+    private final boolean batch;
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private final Map<String, Frame> queuedByKey = new HashMap<>();
+    private int notifications = 0;
+    private long dropped = 0;
+    private boolean closed = false;
+    private boolean writing = false;
+
+    /**
+     * @param socket   the subscriber connection.
+     * @param output   its output stream, only written by this queue from now on.
+     * @param capacity notifications queued at most.
+     * @param policy   what to do when a notification does not fit.
+     * @param batch    whether notifications are sent in batches.
+     */
+    public SubscriberQueue(Socket socket, DataOutputStream output, int capacity, Policy policy, boolean batch) {
+        this.socket = socket;
+        this.output = output;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.batch = batch;
+        Thread writer = new Thread(this::write, "subscriber-writer " + socket.getRemoteSocketAddress());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a notification.
+     *
+     * @param key     channel and uri of the resource, for coalescing.
+     * @param json    the notification.
+     * @param written run by the writer once the notification is written, e.g. to count it.
+     * @return false if the notification was not queued.
+     */
+    public synchronized boolean offer(String key, String json, Runnable written) {
+        if (closed) {
+            return false;
+        }
+        if (policy == Policy.COALESCE) {
+            Frame queued = queuedByKey.get(key);
+            if (queued != null) {
+                //the subscriber only needs the latest state of the resource, only that one counts
+                queued.json = json;
+                queued.written = written;
+                return true;
+            }
+        }
+        if (notifications >= capacity) {
+            if (policy == Policy.DISCONNECT) {
+                Nodes.logger.log(Level.WARNING, "{0} too slow, disconnected", socket.getRemoteSocketAddress());
+                closeNow();
+                return false;
+            }
+            dropOldest();
+        }
+        Frame frame = new Frame(key, json, written, null);
+        frames.addLast(frame);
+        notifications++;
+        if (policy == Policy.COALESCE) {
+            queuedByKey.put(key, frame);
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Queue a control frame behind the notifications queued so far.
+     */
+    public synchronized void sendControl(String json) {
+        if (closed) {
+            return;
+        }
+        frames.addLast(new Frame(null, json, null, null));
+        notifyAll();
+    }
+
+    /**
+     * Queue a control frame that is built only once the notifications queued so far are
+     * written, e.g. a result size that has to include them.
+     */
+    public synchronized void sendControl(Supplier<String> json) {
+        if (closed) {
+            return;
+        }
+        frames.addLast(new Frame(null, null, null, json));
+        notifyAll();
+    }
+
+    /**
+     * Write what is queued and stop, waiting a while for a slow subscriber.
+     */
+    public synchronized void finish() {
+        closed = true;
+        notifyAll();
+        long deadline = System.currentTimeMillis() + FINISH_TIMEOUT;
+        try {
+            while ((!frames.isEmpty() || writing) && System.currentTimeMillis() < deadline) {
+                wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        frames.clear();
+        if (dropped > 0) {
+            Nodes.logger.log(Level.INFO, "{0} : {1} notifications dropped for a slow subscriber",
+                    new Object[]{socket.getRemoteSocketAddress(), dropped});
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private void dropOldest() {
+        Iterator<Frame> it = frames.iterator();
+        while (it.hasNext()) {
+            Frame frame = it.next();
+            if (frame.key != null) {
+                it.remove();
+                removed(frame);
+                dropped++;
+                return;
+            }
+        }
+    }
+
+    private void removed(Frame frame) {
+        if (frame.key != null) {
+            notifications--;
+            queuedByKey.remove(frame.key, frame);
+        }
+    }
+
+    private void closeNow() {
+        closed = true;
+        frames.clear();
+        queuedByKey.clear();
+        notifications = 0;
+        notifyAll();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Nodes.logger.log(Level.FINE, "IOException when closing subscriber {0}", socket.getRemoteSocketAddress());
+        }
+    }
+
+    /**
+     * Take notifications from the head of the queue into one frame, as many as fit.
+     *
+     * @param written gets what to run once the frame is written.
+     */
+    private String takeBatch(List<Runnable> written) {
+        StringBuilder sb = new StringBuilder(BATCH_HEAD);
+        int bytes = BATCH_HEAD.length() + BATCH_TAIL.length();
+        int count = 0;
+        Frame frame;
+        while ((frame = frames.peekFirst()) != null && frame.key != null && count < BATCH_MAX_ITEMS) {
+            int size = utfLength(frame.json) + 1;
+            if (count > 0 && bytes + size > MAX_FRAME) {
+                break;
+            }
+            frames.pollFirst();
+            removed(frame);
+            if (frame.written != null) {
+                written.add(frame.written);
+            }
+            if (count > 0) {
+                sb.append(',');
+            }
+            sb.append(frame.json);
+            bytes += size;
+            count++;
+        }
+        return sb.append(BATCH_TAIL).toString();
+    }
+
+    /**
+     * @return length of the string in the modified UTF-8 of writeUTF.
+     */
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    private void write() {
+        List<Runnable> written = new ArrayList<>();
+        while (true) {
+            String json;
+            boolean last;
+            written.clear();
+            synchronized (this) {
+                writing = false;
+                notifyAll();
+                while (frames.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (batch && !frames.isEmpty() && frames.peekFirst().key != null) {
+                    //let a burst build up, unless a control frame or a full batch is waiting
+                    long deadline = System.currentTimeMillis() + BATCH_WINDOW;
+                    long remaining;
+                    while (!closed && notifications == frames.size() && notifications < BATCH_MAX_ITEMS
+                            && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        try {
+                            wait(remaining);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                Frame frame = frames.peekFirst();
+                if (frame == null) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                if (batch && frame.key != null) {
+                    json = takeBatch(written);
+                } else {
+                    frames.pollFirst();
+                    removed(frame);
+                    json = frame.deferred != null ? frame.deferred.get() : frame.json;
+                    if (frame.written != null) {
+                        written.add(frame.written);
+                    }
+                }
+                last = frames.isEmpty();
+                writing = true;
+            }
+            try {
+                output.writeUTF(json);
+                //flush once the queue is drained, a backlog goes out in as few packets as possible
+                if (last) {
+                    output.flush();
+                }
+                for (Runnable r : written) {
+                    r.run();
+                }
+            } catch (IOException e) {
+                Nodes.logger.log(Level.WARNING, "{0} IOException when sending to subscriber", socket.getRemoteSocketAddress());
+                synchronized (this) {
+                    writing = false;
+                    closeNow();
+                }
+                return;
+            }
+        }
+    }
+}
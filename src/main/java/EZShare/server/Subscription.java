@@ -3,8 +3,11 @@ package EZShare.server;
 import EZShare.message.Host;
 import EZShare.message.SubscribeMessage;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Encapsulation of subscriptions
@@ -12,56 +15,128 @@ import java.util.concurrent.ConcurrentHashMap;
  * @author zenanz
  */
 public class Subscription {
-    private ConcurrentHashMap<SubscribeMessage,Integer> subscribeMessage = new ConcurrentHashMap<>();
+
+    /**
+     * One subscribe message of the subscriber, with the number of resources sent for it.
+     */
+    public static class Entry {
+        private final SubscribeMessage message;
+        private final LongAdder results = new LongAdder();
+
+        private Entry(SubscribeMessage message) {
+            this.message = message;
+        }
+
+        public SubscribeMessage getMessage() {
+            return message;
+        }
+
+        public long getResultSize() {
+            return results.sum();
+        }
+    }
+
+    /* Subscribe messages by id, so that notifying and unsubscribing need no scan */
+    private final ConcurrentHashMap<String, Entry> subscribeMessage = new ConcurrentHashMap<>();
     private String origin;
     private Host target;
+    /* Frames to the subscriber, null for subscriptions not held by a local connection */
+    private SubscriberQueue outbound;
+    /* A resumed subscription gets numbered frames, only of changes after the ones replayed */
+    private volatile boolean sequenced = false;
+    private volatile long floor = 0;
 
     public Subscription(SubscribeMessage subscribeMessage, String origin, Host target) {
         this.origin = origin;
         this.target = target;
-        this.subscribeMessage.put(subscribeMessage,0);
+        addSubscribeMessage(subscribeMessage);
     }
 
     public Subscription(SubscribeMessage subscribeMessage, String origin) {
         this.origin = origin;
-        this.subscribeMessage.put(subscribeMessage,0);
+        addSubscribeMessage(subscribeMessage);
     }
 
+    public Subscription(SubscribeMessage subscribeMessage, String origin, SubscriberQueue outbound) {
+        this(subscribeMessage, origin);
+        this.outbound = outbound;
+    }
 
-    public void addSubscribeMessage(SubscribeMessage subscribeMessage){
-        this.subscribeMessage.put(subscribeMessage,0);
+    public SubscriberQueue getOutbound() {
+        return outbound;
     }
 
-    public void removeSubscribeMessage(String id){
-        for (Map.Entry<SubscribeMessage,Integer> entry: this.subscribeMessage.entrySet()) {
-           if (entry.getKey().getId().equals(id)){
-               this.subscribeMessage.remove(entry.getKey());
-               // Personally I think the spec is problematic
-               return;
-           }
-        }
+    /**
+     * Number the frames of this subscription and leave out changes up to floor, which are
+     * replayed to it instead.
+     */
+    public void resumeAfter(long floor) {
+        this.floor = floor;
+        this.sequenced = true;
     }
 
-    public ConcurrentHashMap<SubscribeMessage,Integer> getSubscribeMessage() {
-        return this.subscribeMessage;
+    public boolean isSequenced() {
+        return sequenced;
     }
 
-    public void addResult(String id) {
-        for (Map.Entry<SubscribeMessage,Integer> entry: this.subscribeMessage.entrySet()) {
-            if (entry.getKey().getId().equals(id)){
-                int size = entry.getValue()+1;
-                this.subscribeMessage.put(entry.getKey(),size);
-            }
+    public long getFloor() {
+        return floor;
+    }
+
+
+    /**
+     * @return the subscribe message replaced because it had the same id, null if none.
+     */
+    public SubscribeMessage addSubscribeMessage(SubscribeMessage subscribeMessage){
+        Entry previous = this.subscribeMessage.put(subscribeMessage.getId(), new Entry(subscribeMessage));
+        return previous == null ? null : previous.message;
+    }
+
+    /**
+     * @return the removed entry with its final result size, null if there was none with the id.
+     */
+    public Entry removeSubscribeMessage(String id){
+        return this.subscribeMessage.remove(id);
+    }
+
+    /**
+     * @return the subscribe messages at the time of the call.
+     */
+    public List<SubscribeMessage> getSubscribeMessages() {
+        List<SubscribeMessage> messages = new ArrayList<>(this.subscribeMessage.size());
+        for (Entry entry : this.subscribeMessage.values()) {
+            messages.add(entry.message);
         }
+        return messages;
+    }
+
+    public boolean isEmpty() {
+        return this.subscribeMessage.isEmpty();
     }
 
-    public int getResultSize(String id){
-        for (Map.Entry<SubscribeMessage,Integer> entry: this.subscribeMessage.entrySet()) {
-            if (entry.getKey().getId().equals(id)){
-                return entry.getValue();
+    /**
+     * @return counts one result for each of the subscribe messages when run, e.g. once the
+     * resource is written to the subscriber. A message withdrawn meanwhile still gets it
+     * counted into its final result size.
+     */
+    public Runnable resultCounter(Collection<String> ids) {
+        List<LongAdder> counters = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Entry entry = this.subscribeMessage.get(id);
+            if (entry != null) {
+                counters.add(entry.results);
             }
         }
-        return 0;
+        return () -> {
+            for (LongAdder counter : counters) {
+                counter.increment();
+            }
+        };
+    }
+
+    public long getResultSize(String id){
+        Entry entry = this.subscribeMessage.get(id);
+        return entry == null ? 0 : entry.getResultSize();
     }
 
     public Host getTarget() {
@@ -0,0 +1,147 @@
+package EZShare.server;
+
+import EZShare.message.ResourceTemplate;
+import EZShare.message.SubscribeMessage;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of subscriptions for finding those a new resource may match without trying them all.
+ * A template only matches resources of its own channel, so subscriptions are kept per channel;
+ * within the channel under their uri if they require one, otherwise under one of their
+ * required tags, otherwise in a list tried for every resource of the channel.
+ * Candidates still have to be checked with ResourceTemplate.match.
+ */
+public class SubscriptionIndex {
+
+    /**
+     * One subscription of a subscriber.
+     */
+    public static class Entry {
+        private final Socket socket;
+        private final SubscribeMessage message;
+
+        private Entry(Socket socket, SubscribeMessage message) {
+            this.socket = socket;
+            this.message = message;
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+
+        public SubscribeMessage getMessage() {
+            return message;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && ((Entry) o).socket.equals(socket) && ((Entry) o).message == message;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * socket.hashCode() + System.identityHashCode(message);
+        }
+    }
+
+    private static class Channel {
+        private final ConcurrentHashMap<String, Set<Entry>> byUri = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Set<Entry>> byTag = new ConcurrentHashMap<>();
+        private final Set<Entry> any = ConcurrentHashMap.newKeySet();
+    }
+
+    private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+
+    public void add(Socket socket, SubscribeMessage message) {
+        ResourceTemplate template = message.getResourceTemplate();
+        Channel channel = channels.computeIfAbsent(template.getChannel(), c -> new Channel());
+        Entry entry = new Entry(socket, message);
+        if (hasUri(template)) {
+            addTo(channel.byUri, template.getUri(), entry);
+        } else if (template.getTag().length > 0) {
+            addTo(channel.byTag, template.getTag()[0], entry);
+        } else {
+            channel.any.add(entry);
+        }
+    }
+
+    public void remove(Socket socket, SubscribeMessage message) {
+        ResourceTemplate template = message.getResourceTemplate();
+        Channel channel = channels.get(template.getChannel());
+        if (channel == null) {
+            return;
+        }
+        Entry entry = new Entry(socket, message);
+        if (hasUri(template)) {
+            removeFrom(channel.byUri, template.getUri(), entry);
+        } else if (template.getTag().length > 0) {
+            removeFrom(channel.byTag, template.getTag()[0], entry);
+        } else {
+            channel.any.remove(entry);
+        }
+    }
+
+    //a missing uri matches any, like an empty one
+    private static boolean hasUri(ResourceTemplate template) {
+        return template.getUri() != null && !template.getUri().equals("");
+    }
+
+    /**
+     * Remove all subscriptions of a subscriber.
+     */
+    public void removeAll(Socket socket, Subscription subscription) {
+        for (SubscribeMessage message : subscription.getSubscribeMessages()) {
+            remove(socket, message);
+        }
+    }
+
+    /**
+     * @return subscriptions that may match the resource, each once.
+     */
+    public List<Entry> candidates(ResourceTemplate resource) {
+        List<Entry> candidates = new ArrayList<>();
+        Channel channel = channels.get(resource.getChannel());
+        if (channel == null) {
+            return candidates;
+        }
+        Set<Entry> byUri = channel.byUri.get(resource.getUri());
+        if (byUri != null) {
+            candidates.addAll(byUri);
+        }
+        //a resource listing a tag twice would otherwise yield its subscriptions twice
+        for (String tag : new LinkedHashSet<>(Arrays.asList(resource.getTag()))) {
+            Set<Entry> byTag = channel.byTag.get(tag);
+            if (byTag != null) {
+                candidates.addAll(byTag);
+            }
+        }
+        candidates.addAll(channel.any);
+        return candidates;
+    }
+
+    //atomic with removeFrom, which drops sets once empty
+    private static void addTo(ConcurrentHashMap<String, Set<Entry>> map, String key, Entry entry) {
+        map.compute(key, (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(entry);
+            return set;
+        });
+    }
+
+    private static void removeFrom(Map<String, Set<Entry>> map, String key, Entry entry) {
+        map.computeIfPresent(key, (k, set) -> {
+            set.remove(entry);
+            return set.isEmpty() ? null : set;
+        });
+    }
+}
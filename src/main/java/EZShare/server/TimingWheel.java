@@ -0,0 +1,116 @@
+package EZShare.server;
+
+import EZShare.Nodes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Hashed timing wheel used to expire per-key state without scanning the whole map.
+ * Each key is held in exactly one slot. When its slot comes round the key's owner is
+ * asked whether it is really idle; it either forgets the key or returns a new deadline.
+ */
+public class TimingWheel<K> {
+
+    /**
+     * Callback invoked when a scheduled deadline passes.
+     */
+    public interface Expiry<K> {
+        /**
+         * @param key the key whose deadline has passed.
+         * @param now current time in milliseconds.
+         * @return the next deadline of the key, or a negative value to drop it.
+         */
+        long expire(K key, long now);
+    }
+
+    private static class Entry<K> {
+        private final K key;
+        private final long deadline;
+
+        private Entry(K key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final List<ConcurrentLinkedQueue<Entry<K>>> slots;
+    private final Expiry<K> expiry;
+    private final ScheduledExecutorService ticker;
+    private long lastTick;
+
+    public TimingWheel(String name, long tickMillis, int slotCount, Expiry<K> expiry) {
+        this.tickMillis = tickMillis;
+        this.expiry = expiry;
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ConcurrentLinkedQueue<>());
+        }
+        this.lastTick = System.currentTimeMillis() / tickMillis;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+        this.ticker.scheduleAtFixedRate(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                //keep ticking, an escaping exception would cancel the wheel
+                Nodes.logger.log(Level.WARNING, name + " tick failed", e);
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Put a key on the wheel. Deadlines beyond one revolution simply stay in their slot
+     * for the extra rounds.
+     *
+     * @param key      the key to expire.
+     * @param deadline absolute time in milliseconds.
+     */
+    public void schedule(K key, long deadline) {
+        slots.get(slotOf(deadline)).add(new Entry<>(key, deadline));
+    }
+
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    private int slotOf(long time) {
+        return (int) ((time / tickMillis) % slots.size());
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        long currentTick = now / tickMillis;
+        //catch up on slots skipped by a late tick, at most one revolution
+        long from = Math.max(lastTick + 1, currentTick - slots.size() + 1);
+        lastTick = currentTick;
+        for (long t = from; t <= currentTick; t++) {
+            ConcurrentLinkedQueue<Entry<K>> slot = slots.get((int) (t % slots.size()));
+            List<Entry<K>> due = new ArrayList<>();
+            Entry<K> e;
+            while ((e = slot.poll()) != null) {
+                due.add(e);
+            }
+            for (Entry<K> entry : due) {
+                if (entry.deadline > now) {
+                    //not this round yet
+                    schedule(entry.key, entry.deadline);
+                    continue;
+                }
+                long next = expiry.expire(entry.key, now);
+                if (next >= 0) {
+                    schedule(entry.key, Math.max(next, now + tickMillis));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package EZShare.server;
+
+import EZShare.message.SubscribeMessage;
+import EZShare.message.UnsubscribeMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Subscriptions this node holds at its peers on behalf of local relay subscribers.
+ * Local subscriptions with the same template share one upstream subscription, counted by
+ * reference, so peers match and notify once per distinct template. A notified resource
+ * reaches every interested local subscriber by the local match.
+ */
+public class UpstreamSubscriptions {
+
+    private static class Upstream {
+        private final SubscribeMessage message;
+        private int subscribers = 0;
+
+        private Upstream(SubscribeMessage message) {
+            this.message = message;
+        }
+    }
+
+    private final Map<String, Upstream> byTemplate = new HashMap<>();
+    private long nextId = 0;
+
+    /**
+     * Count a local subscriber in.
+     *
+     * @param local the subscribe message of a local subscriber.
+     * @return the subscribe message to relay to the peers, null if an identical one is held
+     * already or the subscription is not to be relayed.
+     */
+    public synchronized SubscribeMessage acquire(SubscribeMessage local) {
+        if (!isRelayed(local)) {
+            return null;
+        }
+        Upstream upstream = byTemplate.get(key(local));
+        if (upstream == null) {
+            //peers relay it further only while hops are left
+            SubscribeMessage forwarded = new SubscribeMessage(local.getMxHops() > 1, "upstream-" + (nextId++),
+                    local.getResourceTemplate(), local.getMxHops() - 1);
+            upstream = new Upstream(forwarded);
+            byTemplate.put(key(local), upstream);
+        }
+        return upstream.subscribers++ == 0 ? upstream.message : null;
+    }
+
+    /**
+     * Count a local subscriber out.
+     *
+     * @param local the subscribe message the subscriber was counted in with.
+     * @return the unsubscribe message to relay to the peers, null if other local subscribers
+     * still need the upstream subscription.
+     */
+    public synchronized UnsubscribeMessage release(SubscribeMessage local) {
+        if (!isRelayed(local)) {
+            return null;
+        }
+        Upstream upstream = byTemplate.get(key(local));
+        if (upstream == null || --upstream.subscribers > 0) {
+            return null;
+        }
+        byTemplate.remove(key(local));
+        return new UnsubscribeMessage(upstream.message.getId());
+    }
+
+    /**
+     * @return the upstream subscriptions held now, to subscribe at a newly connected peer.
+     */
+    public synchronized List<SubscribeMessage> getAll() {
+        List<SubscribeMessage> messages = new ArrayList<>(byTemplate.size());
+        for (Upstream upstream : byTemplate.values()) {
+            messages.add(upstream.message);
+        }
+        return messages;
+    }
+
+    public synchronized boolean isEmpty() {
+        return byTemplate.isEmpty();
+    }
+
+    private static boolean isRelayed(SubscribeMessage message) {
+        return message.isRelay() && message.getMxHops() >= 1;
+    }
+
+    //how far a subscription reaches is part of what it asks for
+    private static String key(SubscribeMessage message) {
+        return message.getResourceTemplate().queryKey() + "\n" + message.getMxHops();
+    }
+}
@@ -2,10 +2,14 @@ package EZShare.server;
 
 import EZShare.message.*;
 import EZShare.Nodes;
+import EZShare.util.BufferPool;
+import EZShare.util.PeerConnectionPool;
 
 import java.io.*;
 import java.lang.reflect.Type;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.security.PublicKey;
 import java.util.*;
 
@@ -14,7 +18,15 @@ import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
 
 
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 /**
@@ -32,6 +44,25 @@ public class WorkerThread extends Thread {
     private Gson gson = new Gson();
     private int maxHops;//maximum hops to visit
     private KeyList keyList;
+    /* Buffers for sending files over streams that have no channel */
+    private static final BufferPool bufferPool = new BufferPool(1024 * 1024, 8);
+    /* Threads running relayed queries in parallel, shared by all workers */
+    private static final ExecutorService relayPool = Executors.newCachedThreadPool();
+    private static final int RELAY_CONNECT_TIMEOUT = 3000;
+    /* Ids of queries this node has handled recently, outlives any query deadline */
+    private static final SeenSet seenQueries = new SeenSet(10000, 60000);
+    /* Workers waiting on an idle kept-alive connection, bounded so that idle peers cannot hold the whole pool */
+    private static final AtomicInteger idleKeepAlive = new AtomicInteger();
+    /* Results of relayed queries, only used on ultra nodes */
+    private static final QueryCache queryCache = new QueryCache(Nodes.QUERY_CACHE_RESULTS, Nodes.QUERY_CACHE_TTL);
+    /* Byte range of the file to send back, fileLength -1 for the whole file */
+    private long fileOffset = 0;
+    private long fileLength = -1;
+    /* Whether the client asked to send another request on this connection */
+    private boolean keepAlive = false;
+    /* File content taken from the chunk store instead of the local disk */
+    private List<byte[]> cachedChunks;
+    private ChunkStore chunkStore;
 
     /**
      * Initialize worker thread, create IO streams.
@@ -39,9 +70,11 @@ public class WorkerThread extends Thread {
      * @param client     the socket.
      * @param fileList   reference of file list.
      * @param serverList reference of server list.
+     * @param chunkStore cache of content fetched through this node.
      */
-    public WorkerThread(Socket client, FileList fileList, ServerList serverList,boolean isUltraNode,int maxHops,KeyList keyList) {
+    public WorkerThread(Socket client, FileList fileList, ServerList serverList,boolean isUltraNode,int maxHops,KeyList keyList,ChunkStore chunkStore) {
         this.client = client;
+        this.chunkStore = chunkStore;
         this.fileList = fileList;
         this.serverList = serverList;
         this.isUltraNode = isUltraNode;
@@ -62,16 +95,35 @@ public class WorkerThread extends Thread {
 
             /* Get input data. Remove \0 in order to prevent crashing. */
             String inputJson = input.readUTF();
+            while (true) {
 //            Nodes.logger.info("input jason " + inputJson);
-            inputJson = inputJson.replace("\0", "");
+                inputJson = inputJson.replace("\0", "");
 
-            /* Process and get output data. */
-            List<String> outputJsons = reception(inputJson);
+                /* Process and get output data. */
+                List<String> outputJsons = reception(inputJson);
 
-            /* Send back output data. */
+                /* Send back output data. */
 //            Nodes.logger.info("before sendout");
-            sendBackMessage(outputJsons);
+                sendBackMessage(outputJsons);
 //            Nodes.logger.info("after sendout");
+                if (!this.keepAlive) {
+                    break;
+                }
+                /* Peer keeps the connection for its next request, close when it stays idle. */
+                if (idleKeepAlive.incrementAndGet() > Nodes.MAX_IDLE_KEEP_ALIVE) {
+                    //enough workers wait already, the peer reconnects for its next request
+                    idleKeepAlive.decrementAndGet();
+                    break;
+                }
+                try {
+                    this.client.setSoTimeout(Nodes.KEEP_ALIVE_TIMEOUT);
+                    inputJson = input.readUTF();
+                } catch (EOFException | SocketTimeoutException e) {
+                    break;
+                } finally {
+                    idleKeepAlive.decrementAndGet();
+                }
+            }
         } catch (SocketTimeoutException e) {
             /* Socket time out during communication. */
             Nodes.logger.log(Level.WARNING, "{0} : Socket Timeout", this.ClientAddress);
@@ -92,6 +144,11 @@ public class WorkerThread extends Thread {
     public List<String> reception(String inputJson) throws IOException {
         List<String> outputJsons = new LinkedList<>();
         boolean jsonSyntaxException = false;
+        /* Reset per request state, the connection may carry several requests */
+        this.keepAlive = false;
+        this.fileOffset = 0;
+        this.fileLength = -1;
+        this.cachedChunks = null;
 
         Message message = null;
         try {
@@ -106,9 +163,16 @@ public class WorkerThread extends Thread {
             jsonSyntaxException = true;
         }
 
-        if (!jsonSyntaxException) {
-            if (!message.getCommand().equals("SUBSCRIBE"))
+        if (!jsonSyntaxException && Nodes.rateLimiter != null
+                && !Nodes.rateLimiter.tryAcquire(client.getInetAddress().getHostAddress(), message.getCommand())) {
+            /* Token bucket of this command class is empty */
+            Nodes.logger.log(Level.WARNING, "{0} : rate limit exceeded for {1}", new Object[]{this.ClientAddress, message.getCommand()});
+            outputJsons.add(getErrorMessageJson("rate limit exceeded"));
+        } else if (!jsonSyntaxException) {
+            if (!message.getCommand().equals("SUBSCRIBE")) {
                 this.client.setSoTimeout(3000);
+                this.keepAlive = message.isKeepAlive();
+            }
             switch (message.getCommand()) {
                 case "PUBLISH":
                     processPublish(outputJsons, inputJson);
@@ -146,6 +210,14 @@ public class WorkerThread extends Thread {
     /*subscription should be passed over if it is ultra node*/
     /*needs to check correctness for multiple subscription and termination @larry*/
     public void processSubscribe(List<String> outputJsons, String JSON) throws IOException {
+        SocketChannel channel = client.getChannel();
+        if (channel != null) {
+            //the worker waits for UNSUBSCRIBE while the queue writes, which the socket's streams serialize
+            this.input = new DataInputStream(ChannelStreams.input(channel));
+        }
+        //frames of a burst go out together, the subscriber's queue flushes once it is drained
+        this.output = new DataOutputStream(new BufferedOutputStream(
+                channel != null ? ChannelStreams.output(channel) : client.getOutputStream()));
         try {
             SubscribeMessage subscribeMessage = gson.fromJson(JSON, SubscribeMessage.class);
 
@@ -162,86 +234,35 @@ public class WorkerThread extends Thread {
             } else if (!subscribeMessage.isRelay()) {
                 //send success message.asynchronous
                 //relay is false,which means the last node to subscribe
-                String response = getSubscribeSuccessMessageJson(subscribeMessage.getId());
-                this.output.writeUTF(response);
-                this.output.flush();
-                //put the subscription in list
-                Nodes.subscriptions.put(this.client, new Subscription(subscribeMessage, this.ClientAddress));
+                if (subscribeMessage.getResumeFrom() == null) {
+                    String response = getSubscribeSuccessMessageJson(subscribeMessage.getId());
+                    this.output.writeUTF(response);
+                    this.output.flush();
+                }
+                //put the subscription in list, from now on only its queue writes to the client
+                SubscriberQueue outbound = new SubscriberQueue(this.client, this.output, Nodes.SUBSCRIBER_QUEUE, Nodes.SLOW_SUBSCRIBER_POLICY,
+                        subscribeMessage.isBatch());
+                startSubscription(subscribeMessage, new Subscription(subscribeMessage, this.ClientAddress, outbound));
                 Nodes.logger.log(Level.FINE, "{0} : Resource subscribed!(relay=false)", this.ClientAddress);
                 //block until user terminate.
-                while (true) {
-                    String next;
-                    try {
-                        if ((next = this.input.readUTF()) != null) {
-                            if (next.contains("UNSUBSCRIBE")) {
-                                //unsubscribe for this subscription
-                                UnsubscribeMessage unsubscribeMessage = gson.fromJson(next, UnsubscribeMessage.class);
-                                Nodes.subscriptions.get(this.client).removeSubscribeMessage(unsubscribeMessage.getId());
-                                String resultsize = getResultSizeJson((long) Nodes.subscriptions.get(this.client).getResultSize(unsubscribeMessage.getId()));
-                                this.output.writeUTF(resultsize);
-                                this.output.flush();
-                                Nodes.logger.log(Level.INFO, "{0} : Terminating subscription " + unsubscribeMessage.getId() + " with resultSize:" + resultsize, this.ClientAddress);
-                                if (Nodes.subscriptions.get(this.client).getSubscribeMessage().size() == 0) {
-                                    break;
-                                }
-                            } else if (next.contains("SUBSCRIBE")) {
-                                SubscribeMessage newsubscribe = gson.fromJson(next, SubscribeMessage.class);
-                                Nodes.subscriptions.get(this.client).addSubscribeMessage(newsubscribe);
-                            }
-                        }
-                    } catch (IOException e) {
-
-                    }
-                }
+                holdSubscription(outbound);
             } else if (subscribeMessage.isRelay()) {
                 //send success message.
-                String response = getSubscribeSuccessMessageJson(subscribeMessage.getId());
-                this.output.writeUTF(response);
-                this.output.flush();
-
-                boolean needrefresh = true;
-                for (Map.Entry<Socket, Subscription> entry : Nodes.subscriptions.entrySet()) {
-                    ConcurrentHashMap<SubscribeMessage, Integer> sms = entry.getValue().getSubscribeMessage();
-                    for (Map.Entry<SubscribeMessage, Integer> m : sms.entrySet()) {
-                        if (m.getKey().isRelay()) {
-                            needrefresh = false;
-                            break;
-                        }
-                    }
-                    if (!needrefresh) {
-                        break;
-                    }
+                if (subscribeMessage.getResumeFrom() == null) {
+                    String response = getSubscribeSuccessMessageJson(subscribeMessage.getId());
+                    this.output.writeUTF(response);
+                    this.output.flush();
                 }
-                if (needrefresh) {
-                    serverList.refreshAllRelay();
-                }
-                int mxHops = subscribeMessage.getMxHops();
-                if (mxHops == 1){
-                    subscribeMessage.setRelay(false);//set relay as false when reaching max hops
-                }
-                //put the subscription in list
-                Nodes.subscriptions.put(this.client, new Subscription(subscribeMessage, this.ClientAddress));
-                SubscribeMessage forwarded = new SubscribeMessage(subscribeMessage.isRelay(), subscribeMessage.getId(),
-                        subscribeMessage.getResourceTemplate(),(mxHops-1));
-                serverList.doMessageRelay(gson.toJson(forwarded));
+
+                //put the subscription in list, from now on only its queue writes to the client
+                SubscriberQueue outbound = new SubscriberQueue(this.client, this.output, Nodes.SUBSCRIBER_QUEUE, Nodes.SLOW_SUBSCRIBER_POLICY,
+                        subscribeMessage.isBatch());
+                startSubscription(subscribeMessage, new Subscription(subscribeMessage, this.ClientAddress, outbound));
+                //peers get one subscription per distinct template, notifications fan out locally
+                serverList.subscribeUpstream(subscribeMessage);
                 Nodes.logger.log(Level.FINE, "{0} : Resource subscribed!(relay=true)", this.ClientAddress);
                 //block until user terminate.
-                String next;
-                while (true) {
-                    if ((next = this.input.readUTF()) != null) {
-                        break;
-                    }
-                }
-                serverList.doMessageRelay(gson.toJson(new UnsubscribeMessage(subscribeMessage.getId())));
-                Subscription subscription = Nodes.subscriptions.get(this.client);
-                int size = 0;
-                for (Map.Entry<SubscribeMessage, Integer> entry : subscription.getSubscribeMessage().entrySet()) {
-                    size += entry.getValue();
-                }
-                JSON = getResultSizeJson((long) size);
-                this.output.writeUTF(JSON);
-                this.output.flush();
-                Nodes.subscriptions.remove(this.client);
+                holdSubscription(outbound);
             }
         } catch (JsonSyntaxException e) {
             Nodes.logger.log(Level.WARNING, "{0} : missing resourceTemplate", this.ClientAddress);
@@ -249,6 +270,100 @@ public class WorkerThread extends Thread {
         }
     }
 
+    /**
+     * Serve the further SUBSCRIBE and UNSUBSCRIBE frames of a subscriber connection, each
+     * naming its subscription id, until the subscriber closes the connection. Withdrawing the
+     * last subscription keeps it open, so a peer's relay channel carries all of its
+     * subscriptions to this node, however many come and go. Relayed subscriptions are shared
+     * upstream while they last.
+     */
+    private void holdSubscription(SubscriberQueue outbound) {
+        Subscription subscription = Nodes.subscriptions.get(this.client);
+        while (subscription != null) {
+            String next;
+            try {
+                next = this.input.readUTF();
+            } catch (SocketTimeoutException e) {
+                //subscriber just quiet
+                continue;
+            } catch (IOException e) {
+                //subscriber gone, unsubscribe all the same
+                break;
+            }
+            try {
+                if (next.contains("UNSUBSCRIBE")) {
+                    //unsubscribe for this subscription
+                    UnsubscribeMessage unsubscribeMessage = gson.fromJson(next, UnsubscribeMessage.class);
+                    Subscription.Entry removed = subscription.removeSubscribeMessage(unsubscribeMessage.getId());
+                    if (removed != null) {
+                        Nodes.subscriptionIndex.remove(this.client, removed.getMessage());
+                        serverList.unsubscribeUpstream(removed.getMessage());
+                    }
+                    //counted once the notifications still queued for it are written
+                    outbound.sendControl(() -> getResultSizeJson(removed == null ? 0 : removed.getResultSize()));
+                    Nodes.logger.log(Level.INFO, "{0} : Terminating subscription " + unsubscribeMessage.getId(), this.ClientAddress);
+                } else if (next.contains("SUBSCRIBE")) {
+                    SubscribeMessage newsubscribe = gson.fromJson(next, SubscribeMessage.class);
+                    if (newsubscribe.getResourceTemplate() == null || !newsubscribe.isValid()) {
+                        outbound.sendControl(getErrorMessageJson("invalid resourceTemplate"));
+                        continue;
+                    }
+                    SubscribeMessage replaced = subscription.addSubscribeMessage(newsubscribe);
+                    if (replaced != null) {
+                        Nodes.subscriptionIndex.remove(this.client, replaced);
+                        serverList.unsubscribeUpstream(replaced);
+                    }
+                    Nodes.subscriptionIndex.add(this.client, newsubscribe);
+                    serverList.subscribeUpstream(newsubscribe);
+                    outbound.sendControl(getSubscribeSuccessMessageJson(newsubscribe.getId()));
+                }
+            } catch (JsonSyntaxException e) {
+                outbound.sendControl(getErrorMessageJson("invalid command"));
+            }
+        }
+        if (subscription != null) {
+            for (SubscribeMessage message : subscription.getSubscribeMessages()) {
+                serverList.unsubscribeUpstream(message);
+            }
+        }
+        removeSubscription();
+        outbound.finish();
+    }
+
+    /**
+     * Register a new subscription. A resumed one gets its success response and the changes it
+     * missed through its queue, a plain one has been answered already.
+     */
+    private void startSubscription(SubscribeMessage subscribeMessage, Subscription subscription) {
+        Long resumeFrom = subscribeMessage.getResumeFrom();
+        if (resumeFrom == null) {
+            putSubscription(subscription);
+            return;
+        }
+        fileList.resume(subscription, resumeFrom, subscribeMessage.getEpoch(), () -> putSubscription(subscription),
+                (latest, complete) -> getSubscribeSuccessMessageJson(subscribeMessage.getId(), fileList.getEpoch(), latest, complete));
+    }
+
+    /**
+     * Register this connection's subscription, replacing any earlier one, and index it.
+     */
+    private void putSubscription(Subscription subscription) {
+        Subscription old = Nodes.subscriptions.put(this.client, subscription);
+        if (old != null) {
+            Nodes.subscriptionIndex.removeAll(this.client, old);
+        }
+        for (SubscribeMessage message : subscription.getSubscribeMessages()) {
+            Nodes.subscriptionIndex.add(this.client, message);
+        }
+    }
+
+    private void removeSubscription() {
+        Subscription old = Nodes.subscriptions.remove(this.client);
+        if (old != null) {
+            Nodes.subscriptionIndex.removeAll(this.client, old);
+        }
+    }
+
     /*cannot publish to ultra node,but normal to local or friend nodes*/
     public void processPublish(List<String> outputJsons, String JSON) {
         try {
@@ -381,18 +496,52 @@ public class WorkerThread extends Thread {
         try {
             ExchangeMessage exchangeMessage = gson.fromJson(JSON, ExchangeMessage.class);
 
-            if (exchangeMessage.getServerList() == null || exchangeMessage.getServerList().isEmpty()) {
+            //a server sending its summary need not name any server
+            if ((exchangeMessage.getServerList() == null || exchangeMessage.getServerList().isEmpty())
+                    && !exchangeMessage.hasSummary()) {
                 throw new JsonSyntaxException("missing server");
             }
             List<Host> inputServerList = exchangeMessage.getServerList();
 
 //            Nodes.logger.info("exchangeMessage valid?" + exchangeMessage.isValid());
-            if (exchangeMessage.isValid()) {
+            if (exchangeMessage.isValid() && exchangeMessage.getOrigin() != null
+                    && !this.serverList.isAddressOf(exchangeMessage.getOrigin(), client.getInetAddress())) {
+                //summaries and gossip are kept per origin, another host must not speak for it
+                Nodes.logger.log(Level.WARNING, "{0} : claims to be {1}", new Object[]{this.ClientAddress, exchangeMessage.getOrigin()});
+                outputJsons.add(getErrorMessageJson("origin does not match connection"));
+            } else if (exchangeMessage.isValid() && exchangeMessage.isGossip()) {
+                //answer with the changes the other server has not seen yet
+                ExchangeMessage delta = this.serverList.answerGossip(exchangeMessage);
+                if (exchangeMessage.getSummary() != null) {
+                    this.serverList.receiveSummary(exchangeMessage.getOrigin(), exchangeMessage.getSummary(), false);
+                }
+                Map<String, Object> response = new LinkedHashMap<>();
+                response.put("response", "success");
+                response.put("serverList", delta.getServerList());
+                response.put("removed", delta.getRemoved());
+                response.put("version", delta.getVersion());
+                response.put("summary", delta.getSummary());
+                outputJsons.add(gson.toJson(response, LinkedHashMap.class));
+                Nodes.logger.log(Level.FINE, "{0} : gossip answered", exchangeMessage.getOrigin());
+            } else if (exchangeMessage.isValid()) {
                 //all servers valid, add to server list.
 //                Nodes.logger.info("begin update server list:"+inputServerList);
-                this.serverList.updateServerList(inputServerList);
-                Nodes.logger.log(Level.FINE, "{0} : servers added", this.ClientAddress);
-                outputJsons.add(getSuccessMessageJson());
+                if (inputServerList != null && !inputServerList.isEmpty()) {
+                    this.serverList.updateServerList(inputServerList);
+                    Nodes.logger.log(Level.FINE, "{0} : servers added", this.ClientAddress);
+                }
+                if (exchangeMessage.hasSummary()) {
+                    this.serverList.receiveSummary(exchangeMessage.getOrigin(), exchangeMessage.getSummary(), exchangeMessage.isSummarySubscribe());
+                    Nodes.logger.log(Level.FINE, "{0} : summary received", exchangeMessage.getOrigin());
+                }
+                if (exchangeMessage.isSummarySubscribe() && this.serverList.getLocalSummaryWire() != null) {
+                    Map<String, String> response = new LinkedHashMap<>();
+                    response.put("response", "success");
+                    response.put("summary", this.serverList.getLocalSummaryWire());
+                    outputJsons.add(gson.toJson(response, LinkedHashMap.class));
+                } else {
+                    outputJsons.add(getSuccessMessageJson());
+                }
             } else {
                 outputJsons.add(getErrorMessageJson("invalid server record"));
             }
@@ -427,7 +576,7 @@ public class WorkerThread extends Thread {
         }
     }
     /*query done*/
-    public void processQuery(List<String> outputJsons, String JSON) {
+    public void processQuery(List<String> outputJsons, String JSON) throws IOException {
         try {
             QueryMessage queryMessage = gson.fromJson(JSON, QueryMessage.class);
             if (queryMessage.getResourceTemplate() == null) {
@@ -438,7 +587,18 @@ public class WorkerThread extends Thread {
             if (!queryMessage.isValid()) {
                 Nodes.logger.log(Level.WARNING, "{0} : invalid resourceTemplate", this.ClientAddress);
                 outputJsons.add(getErrorMessageJson("invalid resourceTemplate"));
+            } else if (queryMessage.getQueryId() != null && !seenQueries.add(queryMessage.getQueryId())) {
+                //this query already reached us by another path and was answered there
+                Nodes.logger.log(Level.FINE, "{0} : duplicate query {1}", new Object[]{this.ClientAddress, queryMessage.getQueryId()});
+                outputJsons.add(getSuccessMessageJson());
+                outputJsons.add(getResultSizeJson((long) 0));
             } else{
+                //queries from older clients get their id here
+                String queryId = queryMessage.getQueryId();
+                if (queryId == null) {
+                    queryId = UUID.randomUUID().toString();
+                    seenQueries.add(queryId);
+                }
                 //relay is always true, query local resource first and query forward
                 List<ResourceTemplate> result = this.fileList.query(r);
                 int mxHops = queryMessage.getMxHops();
@@ -455,36 +615,47 @@ public class WorkerThread extends Thread {
                     //when hops are not cast over,i.e. mxHops>1
                     QueryMessage relayMessage = gson.fromJson(JSON, QueryMessage.class);
                     relayMessage.setMxHops(mxHops-1);
+                    relayMessage.setQueryId(queryId);
                     relayMessage.getResourceTemplate().setOwner("");
                     relayMessage.getResourceTemplate().setChannel("");
+                    //ultra nodes hold nothing themselves, a popular query is answered from recent relays
+                    List<ResourceTemplate> cached = this.isUltraNode ? queryCache.get(relayMessage.getResourceTemplate(), mxHops - 1) : null;
+                    if (cached != null) {
+                        outputJsons.add(getSuccessMessageJson());
+                        for (ResourceTemplate rt : cached) {
+                            outputJsons.add(rt.toString());
+                        }
+                        outputJsons.add(getResultSizeJson((long) cached.size()));
+                        Nodes.logger.fine("Query answered from cache");
+                        return;
+                    }
                     //append result set by querying remote servers
                     /*to make sure it wont expand node more than limited*/
-                    if (Nodes.MAX_NODES_TO_EXPAND >= this.serverList.getServerList().size()){
-                        //if server list is smaller than nodes to expand
-                        for (Host h : this.serverList.getServerList()) {
-                            List<ResourceTemplate> rtl = doSingleQueryRelay(h, relayMessage);
-                            if (!rtl.isEmpty())
-                                result.addAll(rtl);
-                        }
-                    }else {
-                        //random expand nodes in server list
-                        List<Host> copyserverlist = new LinkedList<Host>(serverList.getServerList());
-                        Collections.shuffle(copyserverlist);
-                        List<Host> subserverlist = copyserverlist.subList(0,Nodes.MAX_NODES_TO_EXPAND);
-                        for (Host h : subserverlist) {
-                            List<ResourceTemplate> rtl = doSingleQueryRelay(h, relayMessage);
-                            if (!rtl.isEmpty())
-                                result.addAll(rtl);
-                        }
+                    //only servers that may hold all tags (and the uri) if their summary tells, preferring
+                    //servers that answered fast and with results before
+                    ResourceTemplate relayed = relayMessage.getResourceTemplate();
+                    List<String> keys = new ArrayList<>();
+                    for (String tag : relayed.getTag()) {
+                        keys.add(ContentSummary.tagKey(tag));
                     }
-                    outputJsons.add(getSuccessMessageJson());
-                    for (ResourceTemplate rt : result) {
-                        if (!rt.getOwner().equals("")) {
-                            rt.setOwner("*");
-                        }
-                        outputJsons.add(rt.toString());
+                    if (!relayed.getUri().equals("")) {
+                        keys.add(ContentSummary.uriKey(relayed.getChannel(), relayed.getUri()));
+                    }
+                    List<Host> serverListToRelay = this.serverList.selectRelayTargets(Nodes.MAX_NODES_TO_EXPAND, keys);
+                    //the further it may still travel, the longer it may take
+                    long deadline = System.currentTimeMillis() + Nodes.QUERY_HOP_DEADLINE * mxHops;
+                    //answer success now, results are streamed as soon as any server returns them
+                    this.output.writeUTF(getSuccessMessageJson());
+                    this.output.flush();
+                    ResultMerger merger = new ResultMerger(this.output);
+                    scatterQueryRelay(serverListToRelay, relayMessage, deadline, merger);
+                    outputJsons.add(getResultSizeJson(merger.close()));
+                    //an empty answer may just mean the servers were slow, do not hold on to it
+                    if (this.isUltraNode && !merger.getResults().isEmpty()) {
+                        queryCache.put(relayMessage.getResourceTemplate(), mxHops - 1, merger.getResults());
                     }
                     Nodes.logger.fine("Query relay Success");
+                    return;
                 }
                 outputJsons.add(getResultSizeJson(((long) result.size())));
             }
@@ -503,6 +674,7 @@ public class WorkerThread extends Thread {
             }
             ResourceTemplate r = fetchMessage.getResource();
             Nodes.logger.log(Level.INFO, "{0} fetching for {1}", new Object[]{client.getRemoteSocketAddress(), r.toString()});
+            ChunkStore.Pinned cached;
             if (!fetchMessage.isValid()) {
                 Nodes.logger.log(Level.WARNING, "{0} : invalid resourceTemplate", this.ClientAddress);
                 outputJsons.add(getErrorMessageJson("invalid resourceTemplate"));
@@ -519,49 +691,36 @@ public class WorkerThread extends Thread {
                     //download when file or maximum hops reached,leaf node or friend node only,since ultra node is empty
                     RandomAccessFile file;
                     file = new RandomAccessFile(new File(new URI(r.getUri()).getPath()), "r");
-                    //file existed.
-                    outputJsons.add(getSuccessMessageJson());
-                    outputJsons.add(gson.toJson(new FileTemplate(result.get(0), file.length())));
+                    long fileSize = file.length();
                     file.close();
-                    outputJsons.add(r.getUri());
-                    outputJsons.add(getResultSizeJson((long) 1));
-                } else if (maxHops == 0) {
+                    //file existed.
+                    addFileResponse(outputJsons, fetchMessage, result.get(0), fileSize);
+                } else if ((cached = chunkStore.pin(r.getChannel(), r.getUri())) != null) {
+                    //fetched through this node before, serve from the chunk store
+                    Nodes.logger.log(Level.INFO,"fetching cached");
+                    this.cachedChunks = cached.getChunks();
+                    addFileResponse(outputJsons, fetchMessage, cached.getResource(), cached.getSize());
+                } else if (mxHops <= 0) {
                     outputJsons.add(getSuccessMessageJson());
                     outputJsons.add(getResultSizeJson((long) 0));
                     Nodes.logger.log(Level.FINE, "{0} : no matched file", this.ClientAddress);
                 } else {
-                    //no local file reached but still have hops to relay
-                    FetchMessage relayFetchMessage = gson.fromJson(JSON, FetchMessage.class);
-//                    relayFetchMessage.getResource().setOwner("");
-//                    relayFetchMessage.getResource().setChannel("");
-                    relayFetchMessage.setMxHops(mxHops - 1);
+                    //no local file reached but still have hops to relay, the peer's answer is piped straight back
+                    FetchMessage relayFetchMessage = fetchMessage.isRanged()
+                            ? new FetchMessage(r, mxHops - 1, fetchMessage.getOffset(), fetchMessage.getLength())
+                            : new FetchMessage(r, mxHops - 1);
                     //append result set by fetching to remote servers
                     /*to make sure it wont expand node more than limited*/
                     Nodes.logger.log(Level.INFO, "{0} :command valid and relay true", this.serverList.getServerList());
-                    List<Host> serverListToRelay;
-                    if (Nodes.MAX_NODES_TO_EXPAND >= this.serverList.getServerList().size()){
-                        serverListToRelay = this.serverList.getServerList();
-                    }else {
-                        List<Host> copyserverlist = new LinkedList<>(serverList.getServerList());
-                        Collections.shuffle(copyserverlist);
-                        serverListToRelay = copyserverlist.subList(0, Nodes.MAX_NODES_TO_EXPAND);
-                    }
+                    //only servers that may hold it if their summary tells, preferring servers that
+                    //answered fast and with results before
+                    List<String> keys = Collections.singletonList(ContentSummary.uriKey(r.getChannel(), r.getUri()));
+                    List<Host> serverListToRelay = this.serverList.selectRelayTargets(Nodes.MAX_NODES_TO_EXPAND, keys);
                     boolean fileFound = false;
                     for (Host h : serverListToRelay) {
-                        List<ResourceTemplate> rtl = doSingleFetchRelay(h, fetchMessage);
-//                        System.out.println("result is empty"+rtl.isEmpty());
-                        if (!rtl.isEmpty()) {
-                            //eventually if it will get an result list,download only once
-                            if (!rtl.get(0).getOwner().equals("")){rtl.get(0).setOwner("*");}
-//                            if (!rtl.get(0).getChannel().equals("")) {rtl.get(0).setChannel("*");}//larry added
+                        //eventually if it will get an result,download only once
+                        if (streamFetchRelay(h, relayFetchMessage)) {
                             Nodes.logger.log(Level.INFO,"fetching relay");
-                            RandomAccessFile file;
-                            file = new RandomAccessFile(new File(new URI(r.getUri()).getPath()), "r");
-                            outputJsons.add(getSuccessMessageJson());
-                            outputJsons.add(gson.toJson(new FileTemplate(rtl.get(0), file.length())));
-                            file.close();
-                            outputJsons.add(r.getUri());
-                            outputJsons.add(getResultSizeJson((long) 1));
                             fileFound = true;
                             break;//stop relay after one success reached
                         }
@@ -587,79 +746,281 @@ public class WorkerThread extends Thread {
             outputJsons.add(getErrorMessageJson("cannot fetch resource"));
         }
     }
-    private List<ResourceTemplate> doSingleFetchRelay(Host host, FetchMessage fetchMessage){
-        List<ResourceTemplate> result = new ArrayList<>();
-        try{
-            Socket socket = new Socket();
-            socket.connect(new InetSocketAddress(host.getHostname(), host.getPort()));
+
+    /**
+     * Queue the success message, file template and file content of a fetch response,
+     * honouring the requested byte range.
+     *
+     * @param resource description of the file.
+     * @param fileSize total size of the file.
+     */
+    private void addFileResponse(List<String> outputJsons, FetchMessage fetchMessage, ResourceTemplate resource, long fileSize) {
+        if (!resource.getOwner().equals("")) {
+            resource.setOwner("*");
+        }
+        outputJsons.add(getSuccessMessageJson());
+        if (fetchMessage.isRanged()) {
+            //only send the requested chunk, clamped to the file
+            this.fileOffset = Math.min(fetchMessage.getOffset(), fileSize);
+            long remaining = fileSize - this.fileOffset;
+            this.fileLength = fetchMessage.getLength() < 0 ? remaining : Math.min(fetchMessage.getLength(), remaining);
+            outputJsons.add(gson.toJson(new FileTemplate(resource, fileSize, this.fileOffset, this.fileLength)));
+        } else {
+            outputJsons.add(gson.toJson(new FileTemplate(resource, fileSize)));
+        }
+        outputJsons.add(fetchMessage.getResource().getUri());
+        outputJsons.add(getResultSizeJson((long) 1));
+    }
+
+    /**
+     * Relay a fetch to a peer and pipe its answer back to the client as it arrives, through
+     * one pooled buffer. A whole file small enough for the chunk store is cached on the way.
+     *
+     * @return whether the peer had the file and it was sent to the client.
+     * @throws IOException when the transfer broke off after the client got part of it; the
+     *                     client connection can then only be closed.
+     */
+    private boolean streamFetchRelay(Host host, FetchMessage fetchMessage) throws IOException {
+        if (!this.serverList.beginRelay(host)) {
+            return false;
+        }
+        fetchMessage.setKeepAlive(true);
+        String JSON = gson.toJson(fetchMessage);
+        long start = System.currentTimeMillis();
+        PeerConnectionPool pool = this.serverList.getConnectionPool();
+        PeerConnectionPool.Connection connection;
+        try {
+            connection = pool.borrow(host, RELAY_CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            Nodes.logger.log(Level.WARNING, "{0} timeout when create relay socket", host.toString());
+            this.serverList.recordRelayFailure(host);
+            return false;
+        }
+        while (true) {
+            try {
+                return streamFetchRelay(host, fetchMessage, JSON, start, connection);
+            } catch (StaleConnectionException e) {
+                //the peer closed the idle connection, try once more on a fresh one
+                try {
+                    connection = pool.open(host, RELAY_CONNECT_TIMEOUT);
+                } catch (IOException ce) {
+                    Nodes.logger.log(Level.WARNING, "{0} timeout when create relay socket", host.toString());
+                    this.serverList.recordRelayFailure(host);
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * A reused connection failed before anything was sent to the client.
+     */
+    private static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Writing to the client failed during a relayed fetch, the peer is not to blame.
+     */
+    private static class ClientWriteException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private ClientWriteException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    private boolean streamFetchRelay(Host host, FetchMessage fetchMessage, String JSON, long start,
+                                     PeerConnectionPool.Connection connection) throws IOException {
+        PeerConnectionPool pool = this.serverList.getConnectionPool();
+        boolean started = false;
+        try {
+            Socket socket = connection.getSocket();
             Nodes.logger.log(Level.FINE, "fetching to {0}", socket.getRemoteSocketAddress().toString());
             socket.setSoTimeout(3000);
 
-            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            DataInputStream inputStream = connection.getInput();
+            DataOutputStream outputStream = connection.getOutput();
 
-            String JSON = gson.toJson(fetchMessage);
             Nodes.logger.log(Level.INFO, "fetching information {0}",JSON);
             outputStream.writeUTF(JSON);
             outputStream.flush();
-//            Nodes.logger.log(Level.INFO, "outputStream succeed!");
             String response = inputStream.readUTF();
-//            Nodes.logger.log(Level.INFO, "inputStream succeed!");
-
-            if (response.contains("success")) {
-                response = inputStream.readUTF(); //discard success message.
-                while (!response.contains("resultSize")) {   //only read resource part.
-                    ResourceTemplate r = gson.fromJson(response, ResourceTemplate.class);
-                    result.add(r);
-                    response = inputStream.readUTF();   //read next response.
-                }
-                Nodes.logger.log(Level.FINE, "successfully fetched {0}", socket.getRemoteSocketAddress().toString());
-                Nodes.logger.log(Level.FINE, "nunmber of result fetched {0}", result.size());
-                Nodes.logger.log(Level.FINE, "result returned {0}", result);
-            } else {
+            long latency = System.currentTimeMillis() - start;
+
+            if (!response.contains("success")) {
                 Nodes.logger.warning(response);
+                pool.release(connection);
+                this.serverList.recordRelaySuccess(host, latency, false);
+                return false;
             }
-            socket.close();
-        }catch (SocketTimeoutException e) {
-            Nodes.logger.log(Level.WARNING, "{0} timeout when fetch relay", host.toString());
-        } catch (ConnectException e) {
-            Nodes.logger.log(Level.WARNING, "{0} timeout when create relay socket", host.toString());
+            response = inputStream.readUTF();
+            if (response.contains("resultSize")) {
+                //peer does not have it
+                pool.release(connection);
+                this.serverList.recordRelaySuccess(host, latency, false);
+                return false;
+            }
+            FileTemplate fileTemplate = gson.fromJson(response, FileTemplate.class);
+            long size = fileTemplate.getLength();
+            ResourceTemplate r = fetchMessage.getResource();
+            ChunkStore.Writer writer = !fetchMessage.isRanged() && chunkStore.accepts(size)
+                    ? chunkStore.newWriter(r.getChannel(), r.getUri(), fileTemplate, size) : null;
+
+            started = true;
+            String template = response;
+            if (!fileTemplate.getOwner().equals("")) {
+                fileTemplate.setOwner("*");
+                template = gson.toJson(fileTemplate);
+            }
+            try {
+                this.output.writeUTF(getSuccessMessageJson());
+                this.output.writeUTF(template);
+            } catch (IOException e) {
+                throw new ClientWriteException(e);
+            }
+            byte[] buffer = bufferPool.acquire();
+            try {
+                long received = 0;
+                while (received < size) {
+                    int num = inputStream.read(buffer, 0, (int) Math.min(buffer.length, size - received));
+                    if (num < 0) {
+                        throw new EOFException();
+                    }
+                    try {
+                        this.output.write(buffer, 0, num);
+                    } catch (IOException e) {
+                        throw new ClientWriteException(e);
+                    }
+                    if (writer != null) {
+                        writer.write(buffer, 0, num);
+                    }
+                    received += num;
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+            //pass on result size
+            String resultSize = inputStream.readUTF();
+            try {
+                this.output.writeUTF(resultSize);
+                this.output.flush();
+            } catch (IOException e) {
+                throw new ClientWriteException(e);
+            }
+            pool.release(connection);
+            if (writer != null) {
+                writer.finish();
+            }
+            Nodes.logger.log(Level.FINE, "successfully fetched {0}", socket.getRemoteSocketAddress().toString());
+            this.serverList.recordRelaySuccess(host, latency, true);
+            return true;
+        } catch (ClientWriteException e) {
+            //the client went away, the peer was answering fine
+            pool.discard(connection);
+            this.keepAlive = false;
+            Nodes.logger.log(Level.WARNING, "{0} : client gone during relayed fetch", this.ClientAddress);
+            throw (IOException) e.getCause();
         } catch (IOException e) {
-            Nodes.logger.log(Level.WARNING, "{0} IOException when fetch relay", host.toString());
+            pool.discard(connection);
+            if (!started && connection.isReused() && !(e instanceof SocketTimeoutException)) {
+                throw new StaleConnectionException();
+            }
+            this.serverList.recordRelayFailure(host);
+            if (started) {
+                //the client has part of a response, it cannot be continued from another peer
+                this.keepAlive = false;
+                throw e;
+            }
+            if (e instanceof SocketTimeoutException) {
+                Nodes.logger.log(Level.WARNING, "{0} timeout when fetch relay", host.toString());
+            } else {
+                Nodes.logger.log(Level.WARNING, "{0} IOException when fetch relay", host.toString());
+            }
+            return false;
         }
-        return result;
     }
-    private List<ResourceTemplate> doSingleQueryRelay(Host host, QueryMessage queryMessage) {
-        List<ResourceTemplate> result = new ArrayList<>();
+
+    /**
+     * Relay a query to several servers at once and pass their results to the merger as
+     * they are read. Stops waiting at the deadline; servers that are slow or down only cost
+     * their share of it.
+     *
+     * @param hosts        servers to relay to.
+     * @param queryMessage the relayed query.
+     * @param deadline     absolute time in milliseconds to stop waiting.
+     * @param merger       receives every result.
+     */
+    private void scatterQueryRelay(List<Host> hosts, QueryMessage queryMessage, long deadline, ResultMerger merger) {
+        CompletionService<Integer> completion = new ExecutorCompletionService<>(relayPool);
+        List<Future<Integer>> pending = new ArrayList<>();
+        queryMessage.setKeepAlive(true);
+        for (Host h : hosts) {
+            pending.add(completion.submit(() -> doSingleQueryRelay(h, queryMessage, deadline, merger)));
+        }
         try {
-            Socket socket = new Socket();
-            socket.connect(new InetSocketAddress(host.getHostname(), host.getPort()));
-            Nodes.logger.log(Level.FINE, "querying to {0}", socket.getRemoteSocketAddress().toString());
-            socket.setSoTimeout(3000);
+            for (int i = 0; i < hosts.size(); i++) {
+                long wait = deadline - System.currentTimeMillis();
+                Future<Integer> done = wait > 0 ? completion.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (done == null) {
+                    Nodes.logger.log(Level.FINE, "query deadline reached, {0} of {1} servers answered", new Object[]{i, hosts.size()});
+                    break;
+                }
+                try {
+                    done.get();
+                } catch (ExecutionException e) {
+                    Nodes.logger.log(Level.WARNING, "query relay failed: {0}", e.getCause().toString());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Future<Integer> f : pending) {
+            f.cancel(true);
+        }
+    }
 
-            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+    /**
+     * @return number of results the server returned.
+     */
+    private int doSingleQueryRelay(Host host, QueryMessage queryMessage, long deadline, ResultMerger merger) {
+        if (!this.serverList.beginRelay(host)) {
+            return 0;
+        }
+        String JSON = gson.toJson(queryMessage);
+        try {
+            long start = System.currentTimeMillis();
+            int timeout = (int) Math.max(1, deadline - start);
+            return this.serverList.getConnectionPool().execute(host, timeout, connection -> {
+                int received = 0;
+                Socket socket = connection.getSocket();
+                Nodes.logger.log(Level.FINE, "querying to {0}", socket.getRemoteSocketAddress().toString());
+                socket.setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
 
-            String JSON = gson.toJson(queryMessage);
+                DataInputStream inputStream = connection.getInput();
+                DataOutputStream outputStream = connection.getOutput();
 
-            outputStream.writeUTF(JSON);
-            outputStream.flush();
+                outputStream.writeUTF(JSON);
+                outputStream.flush();
 
-            String response = inputStream.readUTF();
+                //once the peer answers, a failure is not retried: it would take the resent query id as seen
+                String response = inputStream.readUTF();
+                long latency = System.currentTimeMillis() - start;
 
-            if (response.contains("success")) {
-                response = inputStream.readUTF(); //discard success message.
-                while (!response.contains("resultSize")) {   //only read resource part.
-                    ResourceTemplate r = gson.fromJson(response, ResourceTemplate.class);
-                    result.add(r);
-                    response = inputStream.readUTF();   //read next response.
+                if (response.contains("success")) {
+                    response = inputStream.readUTF(); //discard success message.
+                    while (!response.contains("resultSize")) {   //only read resource part.
+                        merger.offer(gson.fromJson(response, ResourceTemplate.class));
+                        received++;
+                        response = inputStream.readUTF();   //read next response.
+                    }
+                    Nodes.logger.log(Level.FINE, "successfully queried {0}", socket.getRemoteSocketAddress().toString());
+                } else {
+                    Nodes.logger.warning(response);
                 }
-                Nodes.logger.log(Level.FINE, "successfully queried {0}", socket.getRemoteSocketAddress().toString());
-            } else {
-                Nodes.logger.warning(response);
-            }
-            socket.close();
-
+                this.serverList.recordRelaySuccess(host, latency, received > 0);
+                return received;
+            });
         } catch (SocketTimeoutException e) {
             Nodes.logger.log(Level.WARNING, "{0} timeout when query relay", host.toString());
         } catch (ConnectException e) {
@@ -667,7 +1028,8 @@ public class WorkerThread extends Thread {
         } catch (IOException e) {
             Nodes.logger.log(Level.WARNING, "{0} IOException when query relay", host.toString());
         }
-        return result;
+        this.serverList.recordRelayFailure(host);
+        return 0;
     }
 
     private String getErrorMessageJson(String errorMessage) {
@@ -690,12 +1052,98 @@ public class WorkerThread extends Thread {
         return gson.toJson(response, LinkedHashMap.class);
     }
 
+    /**
+     * @param epoch   epoch of the sequence numbers, to resume with later.
+     * @param seq     sequence number of the latest change on this node.
+     * @param resumed whether all changes since the one the subscriber last saw were replayed.
+     */
+    private String getSubscribeSuccessMessageJson(String id, long epoch, long seq, boolean resumed) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("response", "success");
+        response.put("id", id);
+        response.put("epoch", epoch);
+        response.put("seq", seq);
+        response.put("resumed", resumed);
+        return gson.toJson(response, LinkedHashMap.class);
+    }
+
     private String getResultSizeJson(Long resultSize) {
         Map<String, Long> response = new LinkedHashMap<>();
         response.put("resultSize", resultSize);
         return gson.toJson(response, LinkedHashMap.class);
     }
 
+    /**
+     * Send a file, or a range of it, to the client. On a plain socket channel the bytes go
+     * from the page cache to the socket without entering the JVM (FileChannel.transferTo);
+     * when the socket has no channel (e.g. SSL) a pooled buffer is used instead.
+     *
+     * @param f        the file to send.
+     * @param position first byte to send.
+     * @param count    number of bytes to send, -1 for the rest of the file.
+     * @throws IOException Exception in file or socket stream.
+     */
+    private void sendFile(File f, long position, long count) throws IOException {
+        output.flush();
+        try (RandomAccessFile file = new RandomAccessFile(f, "r")) {
+            FileChannel fileChannel = file.getChannel();
+            long end = count < 0 ? fileChannel.size() : Math.min(fileChannel.size(), position + count);
+            SocketChannel socketChannel = client.getChannel();
+            if (socketChannel != null && socketChannel.isBlocking()) {
+                while (position < end) {
+                    long sent = fileChannel.transferTo(position, end - position, socketChannel);
+                    if (sent <= 0) {
+                        //file truncated while sending
+                        break;
+                    }
+                    position += sent;
+                }
+            } else {
+                byte[] sendingBuffer = bufferPool.acquire();
+                try {
+                    int num;
+                    file.seek(position);
+                    // While there are still bytes to send..
+                    while (position < end
+                            && (num = file.read(sendingBuffer, 0, (int) Math.min(sendingBuffer.length, end - position))) > 0) {
+                        output.write(sendingBuffer, 0, num);
+                        position += num;
+                    }
+                    output.flush();
+                } finally {
+                    bufferPool.release(sendingBuffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a file, or a range of it, from chunks pinned in the chunk store.
+     *
+     * @param chunks   file content, all ChunkStore.CHUNK_SIZE long except the last.
+     * @param position first byte to send.
+     * @param count    number of bytes to send, -1 for the rest of the file.
+     * @throws IOException Exception in socket stream.
+     */
+    private void sendChunks(List<byte[]> chunks, long position, long count) throws IOException {
+        long remaining = count;
+        int index = (int) (position / ChunkStore.CHUNK_SIZE);
+        int offset = (int) (position % ChunkStore.CHUNK_SIZE);
+        for (; index < chunks.size() && remaining != 0; index++) {
+            byte[] chunk = chunks.get(index);
+            int len = chunk.length - offset;
+            if (remaining > 0 && remaining < len) {
+                len = (int) remaining;
+            }
+            output.write(chunk, offset, len);
+            if (remaining > 0) {
+                remaining -= len;
+            }
+            offset = 0;
+        }
+        output.flush();
+    }
+
     private void sendBackMessage(List<String> jsons) {
         try {
             for (String json : jsons) {
@@ -707,18 +1155,13 @@ public class WorkerThread extends Thread {
                         output.writeUTF(json);
                         output.flush();
                     } else {
-                        RandomAccessFile file;
-                        file = new RandomAccessFile(new File(new URI(json).getPath()), "r");
-
-                        byte[] sendingBuffer = new byte[1024 * 1024];
-                        int num;
-                        // While there are still bytes to send..
                         Nodes.logger.log(Level.INFO, "{0} : start sending file {1}", new Object[]{this.ClientAddress, json});
-                        while ((num = file.read(sendingBuffer)) > 0) {
-                            output.write(Arrays.copyOf(sendingBuffer, num));
+                        if (cachedChunks != null) {
+                            sendChunks(cachedChunks, fileOffset, fileLength);
+                        } else {
+                            sendFile(new File(new URI(json).getPath()), fileOffset, fileLength);
                         }
                         Nodes.logger.log(Level.FINE, "{0} : successfully sent {1}", new Object[]{this.ClientAddress, json});
-                        file.close();
                     }
                 }
             }
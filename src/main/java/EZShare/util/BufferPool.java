@@ -0,0 +1,45 @@
+package EZShare.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of fixed-size byte arrays for copying file data, so that each transfer
+ * does not allocate a fresh megabyte buffer.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public byte[] acquire() {
+        byte[] buffer = pool.poll();
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer. Buffers beyond the pool limit are left to the garbage collector.
+     */
+    public void release(byte[] buffer) {
+        if (buffer.length == bufferSize && pooled.incrementAndGet() <= maxPooled) {
+            pool.offer(buffer);
+        } else if (buffer.length == bufferSize) {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
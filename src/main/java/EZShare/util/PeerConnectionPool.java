@@ -0,0 +1,261 @@
+package EZShare.util;
+
+import EZShare.Nodes;
+import EZShare.message.Host;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Keeps idle connections to peer servers for reuse by relayed requests.
+ * Requests sent over a pooled connection must ask the server to keep it alive
+ * (Message.setKeepAlive) and read the whole response before the connection is released.
+ */
+public class PeerConnectionPool {
+
+    /**
+     * One request/response exchange over a connection.
+     */
+    public interface Exchange<T> {
+        T run(Connection connection) throws IOException;
+    }
+
+    /**
+     * A socket to a peer with its data streams.
+     */
+    public static class Connection {
+        private final String key;
+        private final Socket socket;
+        private final DataInputStream input;
+        private final DataOutputStream output;
+        private long lastUsed;
+        private boolean reused = false;
+        /* whether the peer has sent anything in the current exchange */
+        private boolean answered = false;
+
+        private Connection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            this.input = new DataInputStream(new FilterInputStream(socket.getInputStream()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    answered |= b >= 0;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    answered |= n > 0;
+                    return n;
+                }
+            });
+            this.output = new DataOutputStream(socket.getOutputStream());
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+
+        public DataInputStream getInput() {
+            return input;
+        }
+
+        public DataOutputStream getOutput() {
+            return output;
+        }
+
+        /**
+         * @return whether the connection was taken from the idle ones, and may have been
+         * closed by the peer meanwhile.
+         */
+        public boolean isReused() {
+            return reused;
+        }
+    }
+
+    private final int maxIdlePerPeer;
+    private final long idleTimeout;
+    private final ConcurrentHashMap<String, ConcurrentLinkedDeque<Connection>> idle = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * @param maxIdlePerPeer idle connections kept per peer.
+     * @param idleTimeout    milliseconds an idle connection is kept, should be below the
+     *                       server's keep-alive timeout.
+     */
+    public PeerConnectionPool(int maxIdlePerPeer, long idleTimeout) {
+        this.maxIdlePerPeer = maxIdlePerPeer;
+        this.idleTimeout = idleTimeout;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "peer-connection-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        this.evictor.scheduleWithFixedDelay(() -> {
+            try {
+                evictIdle();
+            } catch (RuntimeException e) {
+                //keep evicting, an escaping exception would cancel the task
+                Nodes.logger.log(Level.WARNING, "evicting idle peer connections failed", e);
+            }
+        }, idleTimeout, idleTimeout / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run an exchange on a pooled connection to the host. If a reused connection turns out
+     * to have been closed by the peer, the exchange is retried once on a fresh connection.
+     * That is only when the peer sent nothing back: a peer that has answered has taken the
+     * request, and may not answer a repeated one the same way (e.g. a query id it has seen).
+     *
+     * @param host           the peer.
+     * @param connectTimeout timeout for opening a new connection.
+     * @param exchange       the request/response to run.
+     * @return result of the exchange.
+     * @throws IOException when the exchange fails.
+     */
+    public <T> T execute(Host host, int connectTimeout, Exchange<T> exchange) throws IOException {
+        Connection connection = borrow(host, connectTimeout);
+        connection.answered = false;
+        try {
+            T result = exchange.run(connection);
+            release(connection);
+            return result;
+        } catch (SocketTimeoutException e) {
+            //a slow peer, not a stale connection
+            discard(connection);
+            throw e;
+        } catch (IOException e) {
+            discard(connection);
+            if (!connection.reused || connection.answered) {
+                throw e;
+            }
+        }
+        connection = open(host, connectTimeout);
+        try {
+            T result = exchange.run(connection);
+            release(connection);
+            return result;
+        } catch (IOException e) {
+            discard(connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Take a healthy idle connection to the host, or open a new one.
+     */
+    public Connection borrow(Host host, int connectTimeout) throws IOException {
+        ConcurrentLinkedDeque<Connection> deque = idle.get(key(host));
+        if (deque != null) {
+            Connection connection;
+            long now = System.currentTimeMillis();
+            while ((connection = deque.pollFirst()) != null) {
+                if (isHealthy(connection, now)) {
+                    connection.reused = true;
+                    return connection;
+                }
+                discard(connection);
+            }
+        }
+        return open(host, connectTimeout);
+    }
+
+    /**
+     * Return a connection whose response has been read completely.
+     */
+    public void release(Connection connection) {
+        connection.lastUsed = System.currentTimeMillis();
+        ConcurrentLinkedDeque<Connection> deque = idle.computeIfAbsent(connection.key, k -> new ConcurrentLinkedDeque<>());
+        if (!isHealthy(connection, connection.lastUsed) || deque.size() >= maxIdlePerPeer) {
+            discard(connection);
+            return;
+        }
+        deque.offerFirst(connection);
+    }
+
+    /**
+     * Close a connection that is broken or in an unknown state.
+     */
+    public void discard(Connection connection) {
+        try {
+            connection.socket.close();
+        } catch (IOException e) {
+            Nodes.logger.log(Level.FINE, "IOException when closing pooled connection to {0}", connection.key);
+        }
+    }
+
+    /**
+     * Close all idle connections to a peer, e.g. when it leaves the server list.
+     */
+    public void closeAll(Host host) {
+        ConcurrentLinkedDeque<Connection> deque = idle.remove(key(host));
+        if (deque != null) {
+            for (Connection connection : deque) {
+                discard(connection);
+            }
+        }
+    }
+
+    /**
+     * Open a new connection to the host, bypassing idle ones.
+     */
+    public Connection open(Host host, int connectTimeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host.getHostname(), host.getPort()), connectTimeout);
+            return new Connection(key(host), socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A usable connection is open, not idle for too long, and has no unexpected bytes
+     * waiting (which would mean a previous response was not read completely).
+     */
+    private boolean isHealthy(Connection connection, long now) {
+        Socket socket = connection.socket;
+        if (socket.isClosed() || !socket.isConnected() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return false;
+        }
+        if (now - connection.lastUsed > idleTimeout) {
+            return false;
+        }
+        try {
+            return connection.input.available() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ConcurrentLinkedDeque<Connection>> entry : idle.entrySet()) {
+            for (Connection connection : entry.getValue()) {
+                if (!isHealthy(connection, now) && entry.getValue().remove(connection)) {
+                    discard(connection);
+                }
+            }
+        }
+    }
+
+    private static String key(Host host) {
+        return host.getHostname() + ":" + host.getPort();
+    }
+}